@@ -1,45 +1,569 @@
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Arrays;
+import java.util.BitSet;
 
-public class Day1 {
-    public static void main(String[] args) throws IOException {
-        final List<Integer> lines = Files.readAllLines(Paths.get("input", "day1"))
-                .stream()
-                .map(String::trim)
-                .map(line -> Integer.valueOf(line))
-                .collect(Collectors.toList());
+class KSumResult {
+    // Ascending positions in the input, and the values at these positions
+    final int[] indices;
+    final int[] values;
+
+    public KSumResult(int[] indices, int[] input) {
+        this.indices = indices;
+        this.values = Arrays.stream(indices).map(index -> input[index]).toArray();
+    }
+
+    public long product() {
+        long product = 1;
+        for(int value : this.values) {
+            product *= value;
+        }
+        return product;
+    }
+}
+
+/**
+ * Map from longs to non-negative ints in an open addressing table with linear probing
+ */
+class LongIndexMap {
+    private long[] keys;
+    // -1 marks an empty slot
+    private int[] indices;
+    private int size = 0;
 
-        partOne(lines);
-        partTwo(lines);
+    public LongIndexMap(int expectedSize) {
+        final int capacity = Integer.highestOneBit(Math.max(expectedSize, 2) * 2 - 1) << 1;
+        this.keys = new long[capacity];
+        this.indices = new int[capacity];
+        Arrays.fill(this.indices, -1);
+    }
 
+    // Returns -1 if the key is not contained
+    public int get(long key) {
+        final int mask = this.keys.length - 1;
+        for(int slot = hash(key) & mask; this.indices[slot] != -1; slot = (slot + 1) & mask) {
+            if(this.keys[slot] == key) {
+                return this.indices[slot];
+            }
+        }
+        return -1;
+    }
+
+    public void put(long key, int index) {
+        final int mask = this.keys.length - 1;
+        int slot = hash(key) & mask;
+        while(this.indices[slot] != -1) {
+            if(this.keys[slot] == key) {
+                this.indices[slot] = index;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        this.keys[slot] = key;
+        this.indices[slot] = index;
+        this.size += 1;
+        if(this.size * 2 > this.keys.length) {
+            this.rehash();
+        }
     }
 
-    private static void partOne(List<Integer> lines) {
-        for(int i = 0; i < lines.size(); ++i) {
-            for (int j = i+1; j < lines.size(); ++j) {
-                final int valueI = lines.get(i), valueJ = lines.get(j);
-                if(valueI + valueJ == 2020) {
-                    System.out.println(valueI * valueJ);
-                    return;
+    private void rehash() {
+        final long[] oldKeys = this.keys;
+        final int[] oldIndices = this.indices;
+        this.keys = new long[oldKeys.length * 2];
+        this.indices = new int[oldKeys.length * 2];
+        Arrays.fill(this.indices, -1);
+        final int mask = this.keys.length - 1;
+        for(int i = 0; i < oldKeys.length; ++i) {
+            if(oldIndices[i] != -1) {
+                int slot = hash(oldKeys[i]) & mask;
+                while(this.indices[slot] != -1) {
+                    slot = (slot + 1) & mask;
                 }
+                this.keys[slot] = oldKeys[i];
+                this.indices[slot] = oldIndices[i];
             }
         }
     }
 
-    private static void partTwo(List<Integer> lines) {
-        for(int i = 0; i < lines.size(); ++i) {
-            for (int j = i+1; j < lines.size(); ++j) {
-                for (int k = j+1; k < lines.size(); ++k) {
-                    final int valueI = lines.get(i), valueJ = lines.get(j), valueK = lines.get(k);
-                    if (valueI + valueJ +valueK == 2020) {
-                        System.out.println(valueI * valueJ * valueK);
-                        return;
+    private static int hash(long key) {
+        final long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+}
+
+/**
+ * Finds k entries at distinct positions of a list that sum to a target. Pairs are found with a hash map in O(n),
+ * triples by sorting and two pointers in O(n^2), and larger k by meeting in the middle over combinations of k/2 entries.
+ */
+class KSumFinder {
+    private final int[] values;
+
+    public KSumFinder(int[] values) {
+        this.values = values;
+    }
+
+    /**
+     * @return Some k entries that sum to the target, or null if there are none
+     */
+    public KSumResult find(long target, int k) {
+        if(k < 1) {
+            throw new IllegalArgumentException("Need at least one summand: " + k);
+        }
+        if(k > this.values.length) {
+            return null;
+        }
+        switch (k) {
+            case 1:
+                for(int i = 0; i < this.values.length; ++i) {
+                    if(this.values[i] == target) {
+                        return new KSumResult(new int[] {i}, this.values);
                     }
                 }
+                return null;
+            case 2:
+                return this.findPair(target);
+            case 3:
+                return this.findTriple(target);
+            default:
+                return this.findByMeetingInTheMiddle(target, k);
+        }
+    }
+
+    private KSumResult findPair(long target) {
+        final LongIndexMap seen = new LongIndexMap(this.values.length);
+        for(int i = 0; i < this.values.length; ++i) {
+            final int j = seen.get(target - this.values[i]);
+            if(j != -1) {
+                return new KSumResult(new int[] {j, i}, this.values);
+            }
+            seen.put(this.values[i], i);
+        }
+        return null;
+    }
+
+    private KSumResult findTriple(long target) {
+        // Each entry holds a value in its upper and its position in its lower half, so sorting orders by value
+        final long[] sorted = new long[this.values.length];
+        for(int i = 0; i < this.values.length; ++i) {
+            sorted[i] = (long) this.values[i] << 32 | i;
+        }
+        Arrays.sort(sorted);
+
+        for(int first = 0; first < sorted.length - 2; ++first) {
+            final long remainder = target - (sorted[first] >> 32);
+            int low = first + 1, high = sorted.length - 1;
+            while(low < high) {
+                final long sum = (sorted[low] >> 32) + (sorted[high] >> 32);
+                if(sum == remainder) {
+                    final int[] indices = {(int) sorted[first], (int) sorted[low], (int) sorted[high]};
+                    Arrays.sort(indices);
+                    return new KSumResult(indices, this.values);
+                } else if(sum < remainder) {
+                    low += 1;
+                } else {
+                    high -= 1;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Splits every candidate set of positions into its k/2 lowest and its remaining highest positions. For each sum of
+     * k/2 positions, only the combination whose highest position is lowest is kept, as it fits before the most
+     * combinations of the other half.
+     */
+    private KSumResult findByMeetingInTheMiddle(long target, int k) {
+        final int lowerSize = k / 2, upperSize = k - lowerSize;
+
+        final LongIndexMap lowerCombinations = new LongIndexMap(1024);
+        int[] lowerStore = new int[1024 * lowerSize];
+        int stored = 0;
+        final int[] combination = this.firstCombination(lowerSize);
+        do {
+            final long sum = this.sum(combination);
+            final int existing = lowerCombinations.get(sum);
+            if(existing == -1 || lowerStore[existing * lowerSize + lowerSize - 1] > combination[lowerSize - 1]) {
+                final int id = existing == -1 ? stored++ : existing;
+                if((id + 1) * lowerSize > lowerStore.length) {
+                    lowerStore = Arrays.copyOf(lowerStore, lowerStore.length * 2);
+                }
+                System.arraycopy(combination, 0, lowerStore, id * lowerSize, lowerSize);
+                lowerCombinations.put(sum, id);
+            }
+        } while(this.nextCombination(combination));
+
+        final int[] upper = this.firstCombination(upperSize);
+        do {
+            final int id = lowerCombinations.get(target - this.sum(upper));
+            if(id != -1 && lowerStore[id * lowerSize + lowerSize - 1] < upper[0]) {
+                final int[] indices = new int[k];
+                System.arraycopy(lowerStore, id * lowerSize, indices, 0, lowerSize);
+                System.arraycopy(upper, 0, indices, lowerSize, upperSize);
+                return new KSumResult(indices, this.values);
+            }
+        } while(this.nextCombination(upper));
+        return null;
+    }
+
+    private int[] firstCombination(int size) {
+        final int[] combination = new int[size];
+        for(int i = 0; i < size; ++i) {
+            combination[i] = i;
+        }
+        return combination;
+    }
+
+    // Advances to the next ascending combination of positions in lexicographic order, returning false after the last
+    private boolean nextCombination(int[] combination) {
+        int i = combination.length - 1;
+        while(i >= 0 && combination[i] == this.values.length - combination.length + i) {
+            i -= 1;
+        }
+        if(i < 0) {
+            return false;
+        }
+        combination[i] += 1;
+        for(int j = i + 1; j < combination.length; ++j) {
+            combination[j] = combination[j - 1] + 1;
+        }
+        return true;
+    }
+
+    private long sum(int[] combination) {
+        long sum = 0;
+        for(int index : combination) {
+            sum += this.values[index];
+        }
+        return sum;
+    }
+}
+
+/**
+ * Answers which pair or triple of entries sums to a target, for many targets against the same list. If the values lie
+ * in a small range, or on a coarse grid within a larger one, a word-parallel bitset DP over all possible sums records
+ * one witness entry per sum up front, so each query is a few lookups. Otherwise, or if there are so few entries that
+ * this is cheaper, all pair sums are sorted once, so that pairs are found by binary search in O(log n) and triples by
+ * one binary search per entry in O(n log n).
+ */
+class ExpenseSumIndex {
+    // Largest reduced value for which the witness tables of the dense mode are built
+    private static final int MAX_DENSE_VALUE = (1 << 24) / 3;
+    // Bytes per pair in the sorted mode, for its sum and both positions
+    private static final int SORTED_PAIR_BYTES = Long.BYTES + 2 * Integer.BYTES;
+
+    private final int[] values;
+    private final boolean dense;
+
+    // Dense mode: each value is reduced to (value - offset) / scale, where the offset is the smallest value and the
+    // scale the greatest common divisor of all differences to it. This keeps inputs such as only even values, or values
+    // far from 0, as compact as values that fill a range from 0.
+    private long offset, scale;
+    // Dense mode, over reduced values and their sums: the first position of each value, and for each sum the last
+    // position of the first pair resp. triple found with that sum, or -1 if there is none. The remaining positions
+    // follow from the sum minus that entry.
+    private int[] firstPosition;
+    private int[] pairLast, tripleLast;
+
+    // Sorted mode: all pairs of positions, ordered by their sums
+    private long[] sortedPairSums;
+    private int[] sortedPairFirst, sortedPairSecond;
+
+    public ExpenseSumIndex(int[] values) {
+        this.values = values;
+        this.offset = Arrays.stream(values).min().orElse(0);
+        final long max = Arrays.stream(values).max().orElse(0);
+        this.scale = Arrays.stream(values).mapToLong(value -> value - this.offset).reduce(0, ExpenseSumIndex::gcd);
+        if(this.scale == 0) {
+            this.scale = 1;
+        }
+        final long span = (max - this.offset) / this.scale;
+        final int[] reduced = this.reduceToThreePerValue();
+        // Compare the words the DP shifts at worst with the work of sorting all pairs
+        final long pairs = (long) reduced.length * (reduced.length - 1) / 2;
+        final long denseWork = reduced.length * (3 * span / 64 + 1);
+        final long sortedWork = pairs * (64 - Long.numberOfLeadingZeros(pairs));
+        this.dense = span <= MAX_DENSE_VALUE && (denseWork < sortedWork || !fitsSortedPairs(pairs));
+        if(this.dense) {
+            this.buildDenseTables(reduced, (int) span);
+        } else {
+            this.buildSortedPairs(reduced);
+        }
+    }
+
+    public KSumResult findPair(long target) {
+        if(this.dense) {
+            final int[] pair = this.densePair(this.reduceSum(target, 2));
+            return pair == null ? null : this.result(pair);
+        }
+        final int pair = this.findSortedPair(target, -1);
+        return pair == -1 ? null : this.result(this.sortedPairFirst[pair], this.sortedPairSecond[pair]);
+    }
+
+    public KSumResult findTriple(long target) {
+        if(this.dense) {
+            final long sum = this.reduceSum(target, 3);
+            if(sum < 0 || sum >= this.tripleLast.length || this.tripleLast[(int) sum] == -1) {
+                return null;
             }
+            final int third = this.tripleLast[(int) sum];
+            final int[] pair = this.densePair(sum - this.reducedValue(third));
+            return this.result(pair[0], pair[1], third);
+        }
+        for(int third = 0; third < this.values.length; ++third) {
+            final int pair = this.findSortedPair(target - this.values[third], third);
+            if(pair != -1) {
+                return this.result(this.sortedPairFirst[pair], this.sortedPairSecond[pair], third);
+            }
+        }
+        return null;
+    }
+
+    // Takes a sum of reduced values
+    private int[] densePair(long sum) {
+        if(sum < 0 || sum >= this.pairLast.length || this.pairLast[(int) sum] == -1) {
+            return null;
+        }
+        final int second = this.pairLast[(int) sum];
+        return new int[] { this.firstPosition[(int) sum - this.reducedValue(second)], second };
+    }
+
+    private int reducedValue(int position) {
+        return (int) ((this.values[position] - this.offset) / this.scale);
+    }
+
+    // The sum of reduced values that corresponds to a sum of the given number of entries, or -1 if there is none
+    private long reduceSum(long target, int entries) {
+        final long shifted = target - entries * this.offset;
+        return shifted < 0 || shifted % this.scale != 0 ? -1 : shifted / this.scale;
+    }
+
+    private static long gcd(long a, long b) {
+        while(b != 0) {
+            final long remainder = a % b;
+            a = b;
+            b = remainder;
+        }
+        return a;
+    }
+
+    // No pair or triple uses a value more than three times, so further occurrences can be dropped
+    private int[] reduceToThreePerValue() {
+        final LongIndexMap occurrences = new LongIndexMap(this.values.length);
+        final int[] reduced = new int[this.values.length];
+        int size = 0;
+        for(int i = 0; i < this.values.length; ++i) {
+            final int seen = Math.max(occurrences.get(this.values[i]), 0);
+            if(seen < 3) {
+                occurrences.put(this.values[i], seen + 1);
+                reduced[size++] = i;
+            }
+        }
+        return Arrays.copyOf(reduced, size);
+    }
+
+    /**
+     * Adds the entries one at a time, keeping the values, pair sums and triple sums seen so far as bitsets. Before an
+     * entry is added, the pair sums only cover earlier entries, so shifting them by the entry's value yields triples of
+     * distinct positions, and likewise shifting the values yields pairs. Each step is a shift-or over whole words, and
+     * a sum's witness is only written when its bit is first set.
+     *
+     * Words of the pair and triple sums that are completely set cannot change anymore, so each step only visits the
+     * words that still have clear bits. For most inputs, nearly all words in the middle of the range fill up after a
+     * few thousand entries, so the build is far below its worst case of O(n * span / 64).
+     *
+     * A pair witness is stored as its later entry, since the other one can then be any earlier occurrence of the
+     * remaining value, such as its first one. A triple witness is stored as its last entry, whose remaining sum already
+     * had a pair of earlier entries at that time.
+     */
+    private void buildDenseTables(int[] reduced, int max) {
+        final long[] seen = new long[(max >> 6) + 1];
+        final long[] pairSums = new long[((2 * max) >> 6) + 2];
+        final long[] tripleSums = new long[((3 * max) >> 6) + 2];
+        // The words of the sums that still have clear bits
+        final BitSet openPairWords = new BitSet(pairSums.length), openTripleWords = new BitSet(tripleSums.length);
+        openPairWords.set(0, pairSums.length);
+        openTripleWords.set(0, tripleSums.length);
+        this.firstPosition = new int[max + 1];
+        this.pairLast = new int[pairSums.length << 6];
+        this.tripleLast = new int[tripleSums.length << 6];
+        Arrays.fill(this.pairLast, -1);
+        Arrays.fill(this.tripleLast, -1);
+
+        // The range of words that may have bits set, so that the empty words around them are not visited
+        int seenFrom = seen.length, seenTo = 0, pairFrom = pairSums.length, pairTo = 0;
+        for(int position : reduced) {
+            final int value = this.reducedValue(position);
+            shiftOr(tripleSums, openTripleWords, pairSums, pairFrom, pairTo, value, this.tripleLast, position);
+            shiftOr(pairSums, openPairWords, seen, seenFrom, seenTo, value, this.pairLast, position);
+            if(seenFrom < seenTo) {
+                pairFrom = Math.min(pairFrom, seenFrom + (value >> 6));
+                pairTo = Math.max(pairTo, Math.min(seenTo + (value >> 6) + 1, pairSums.length));
+            }
+            if((seen[value >> 6] & (1L << value)) == 0) {
+                seen[value >> 6] |= 1L << value;
+                this.firstPosition[value] = position;
+                seenFrom = Math.min(seenFrom, value >> 6);
+                seenTo = Math.max(seenTo, (value >> 6) + 1);
+            }
+        }
+    }
+
+    // Ors the source words in [from, to), shifted up by the given number of bits, into the open words of the target.
+    // Records the witness for every bit that this newly sets, and closes the words that this fills up.
+    private static void shiftOr(long[] target, BitSet open, long[] source, int from, int to, int shift, int[] witnesses, int witness) {
+        if(from >= to) {
+            return;
+        }
+        final int wordShift = shift >> 6, bitShift = shift & 63;
+        final int targetTo = Math.min(to + wordShift + (bitShift == 0 ? 0 : 1), target.length);
+        for(int word = open.nextSetBit(from + wordShift); word >= 0 && word < targetTo; word = open.nextSetBit(word + 1)) {
+            final int i = word - wordShift;
+            long bits = i < to ? source[i] << bitShift : 0;
+            if(bitShift != 0 && i > from) {
+                bits |= source[i - 1] >>> (64 - bitShift);
+            }
+            long added = bits & ~target[word];
+            if(added == 0) {
+                continue;
+            }
+            target[word] |= added;
+            if(target[word] == -1L) {
+                open.clear(word);
+            }
+            while(added != 0) {
+                witnesses[(word << 6) + Long.numberOfTrailingZeros(added)] = witness;
+                added &= added - 1;
+            }
+        }
+    }
+
+    // Whether the sorted mode can hold the given number of pairs in half of the heap that may still be allocated
+    private static boolean fitsSortedPairs(long pairs) {
+        final Runtime runtime = Runtime.getRuntime();
+        final long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return pairs <= Integer.MAX_VALUE - 8 && pairs * SORTED_PAIR_BYTES <= available / 2;
+    }
+
+    // Only pairs of the reduced positions are indexed, so at most three pairs of any sum share a given entry
+    private void buildSortedPairs(int[] reduced) {
+        final long pairs = (long) reduced.length * (reduced.length - 1) / 2;
+        if(!fitsSortedPairs(pairs)) {
+            throw new IllegalArgumentException("Indexing " + pairs + " pairs of widely spread values needs "
+                    + (pairs * SORTED_PAIR_BYTES >> 20) + " MiB, more than half of the available heap of "
+                    + (Runtime.getRuntime().maxMemory() >> 20) + " MiB");
+        }
+        this.sortedPairSums = new long[(int) pairs];
+        this.sortedPairFirst = new int[(int) pairs];
+        this.sortedPairSecond = new int[(int) pairs];
+        int pair = 0;
+        for(int i = 0; i < reduced.length; ++i) {
+            for(int j = i + 1; j < reduced.length; ++j) {
+                this.sortedPairSums[pair] = (long) this.values[reduced[i]] + this.values[reduced[j]];
+                this.sortedPairFirst[pair] = reduced[i];
+                this.sortedPairSecond[pair] = reduced[j];
+                pair += 1;
+            }
+        }
+        this.sortPairs(0, (int) pairs - 1);
+    }
+
+    // Quicksort of the three pair arrays by sum
+    private void sortPairs(int low, int high) {
+        while(low < high) {
+            final long pivot = this.sortedPairSums[(low + high) >>> 1];
+            int left = low, right = high;
+            while(left <= right) {
+                while(this.sortedPairSums[left] < pivot) {
+                    left += 1;
+                }
+                while(this.sortedPairSums[right] > pivot) {
+                    right -= 1;
+                }
+                if(left <= right) {
+                    this.swapPairs(left++, right--);
+                }
+            }
+            // Recurse into the smaller part only, so that the stack stays logarithmic
+            if(right - low < high - left) {
+                this.sortPairs(low, right);
+                low = left;
+            } else {
+                this.sortPairs(left, high);
+                high = right;
+            }
+        }
+    }
+
+    private void swapPairs(int a, int b) {
+        final long sum = this.sortedPairSums[a];
+        this.sortedPairSums[a] = this.sortedPairSums[b];
+        this.sortedPairSums[b] = sum;
+        final int first = this.sortedPairFirst[a];
+        this.sortedPairFirst[a] = this.sortedPairFirst[b];
+        this.sortedPairFirst[b] = first;
+        final int second = this.sortedPairSecond[a];
+        this.sortedPairSecond[a] = this.sortedPairSecond[b];
+        this.sortedPairSecond[b] = second;
+    }
+
+    /**
+     * The scan after the binary search skips at most the three pairs that pair the excluded entry with an occurrence of
+     * the remaining value, so it stays constant.
+     *
+     * @return The index of a sorted pair with the given sum that does not use the excluded position, or -1
+     */
+    private int findSortedPair(long sum, int excluded) {
+        int low = 0, high = this.sortedPairSums.length;
+        while(low < high) {
+            final int middle = (low + high) >>> 1;
+            if(this.sortedPairSums[middle] < sum) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for(int pair = low; pair < this.sortedPairSums.length && this.sortedPairSums[pair] == sum; ++pair) {
+            if(this.sortedPairFirst[pair] != excluded && this.sortedPairSecond[pair] != excluded) {
+                return pair;
+            }
+        }
+        return -1;
+    }
+
+    private KSumResult result(int... indices) {
+        Arrays.sort(indices);
+        return new KSumResult(indices, this.values);
+    }
+}
+
+public class Day1 {
+    public static void main(String[] args) throws IOException {
+        final int[] lines = Files.readAllLines(Paths.get("input", "day1"))
+                .stream()
+                .map(String::trim)
+                .mapToInt(Integer::parseInt)
+                .toArray();
+        final KSumFinder finder = new KSumFinder(lines);
+
+        partOne(finder);
+        partTwo(finder);
+
+    }
+
+    private static void partOne(KSumFinder finder) {
+        final KSumResult result = finder.find(2020, 2);
+        if(result != null) {
+            System.out.println(result.product());
+        }
+    }
+
+    private static void partTwo(KSumFinder finder) {
+        final KSumResult result = finder.find(2020, 3);
+        if(result != null) {
+            System.out.println(result.product());
         }
     }
 }
@@ -1,48 +1,338 @@
 import java.io.IOException;
+import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BinaryOperator;
+import java.util.function.IntFunction;
 
-public class Day10 {
-    public static void main(String[] args) throws IOException {
-        final List<Integer> inputList = Files.readAllLines(Paths.get("input", "day10")).stream()
-                .map(Integer::parseInt)
-                .sorted()
-                .collect(Collectors.toList());
+/**
+ * Counts the ways to chain adapters from the outlet to the device, where each adapter accepts 1 to 3 jolts less than
+ * its own rating. The count can be taken as a long, modulo a number, or with arbitrary precision. Adapters with equal
+ * joltages count as distinct, and an empty list has no arrangement. SegmentedArrangementCounter gives the same counts.
+ */
+class ArrangementCounter {
+    // Above this many counters per adapter, sorting by radix is cheaper than counting
+    private static final int COUNTING_SORT_FACTOR = 4;
+
+    private final int[] joltages;
+
+    public ArrangementCounter(int[] adapters) {
+        this.joltages = sort(adapters);
+    }
+
+    public int[] getJoltages() {
+        return this.joltages;
+    }
+
+    /**
+     * @throws ArithmeticException If the count does not fit into a long
+     */
+    public long count() {
+        // No adapter after a gap over 3 can be reached, so check for one before partial counts can overflow
+        for(int i = 0; i < this.joltages.length; ++i) {
+            if(this.joltages[i] - (i == 0 ? 0 : this.joltages[i - 1]) > 3) {
+                return 0;
+            }
+        }
+        final long[] possibilities = new long[this.joltages.length];
+        for(int i = 0; i < this.joltages.length; ++i) {
+            long currentPossibilities = this.joltages[i] <= 3 ? 1 : 0;
+            for(int j = Math.max(i - 3, 0); j < i; ++j) {
+                if(this.joltages[j] >= this.joltages[i] - 3) {
+                    currentPossibilities = Math.addExact(currentPossibilities, possibilities[j]);
+                }
+            }
+            possibilities[i] = currentPossibilities;
+        }
+        return possibilities.length == 0 ? 0 : possibilities[possibilities.length - 1];
+    }
+
+    public long countModulo(long modulus) {
+        if(modulus < 1) {
+            throw new IllegalArgumentException("Modulus must be positive: " + modulus);
+        }
+        final long[] possibilities = new long[this.joltages.length];
+        for(int i = 0; i < this.joltages.length; ++i) {
+            long currentPossibilities = this.joltages[i] <= 3 ? 1 % modulus : 0;
+            for(int j = Math.max(i - 3, 0); j < i; ++j) {
+                if(this.joltages[j] >= this.joltages[i] - 3) {
+                    // Both summands are below the modulus, so their difference to it cannot overflow
+                    currentPossibilities = currentPossibilities >= modulus - possibilities[j] ?
+                            currentPossibilities - (modulus - possibilities[j]) : currentPossibilities + possibilities[j];
+                }
+            }
+            possibilities[i] = currentPossibilities;
+        }
+        return possibilities.length == 0 ? 0 : possibilities[possibilities.length - 1];
+    }
+
+    public BigInteger countExact() {
+        final BigInteger[] possibilities = new BigInteger[this.joltages.length];
+        for(int i = 0; i < this.joltages.length; ++i) {
+            BigInteger currentPossibilities = this.joltages[i] <= 3 ? BigInteger.ONE : BigInteger.ZERO;
+            for(int j = Math.max(i - 3, 0); j < i; ++j) {
+                if(this.joltages[j] >= this.joltages[i] - 3) {
+                    currentPossibilities = currentPossibilities.add(possibilities[j]);
+                }
+            }
+            possibilities[i] = currentPossibilities;
+        }
+        return possibilities.length == 0 ? BigInteger.ZERO : possibilities[possibilities.length - 1];
+    }
+
+    /**
+     * Sorts non-negative joltages by counting them if their range is small compared to their number, and by an LSD
+     * radix sort over their bytes otherwise
+     */
+    static int[] sort(int[] values) {
+        int max = 0;
+        for(int value : values) {
+            if(value < 0) {
+                throw new IllegalArgumentException("Negative joltage: " + value);
+            }
+            max = Math.max(max, value);
+        }
+
+        if(max / COUNTING_SORT_FACTOR <= values.length) {
+            final int[] counts = new int[max + 1];
+            for(int value : values) {
+                counts[value] += 1;
+            }
+            final int[] sorted = new int[values.length];
+            int position = 0;
+            for(int value = 0; value <= max; ++value) {
+                for(int i = 0; i < counts[value]; ++i) {
+                    sorted[position++] = value;
+                }
+            }
+            return sorted;
+        }
+
+        int[] sorted = values.clone();
+        int[] buffer = new int[values.length];
+        for(int shift = 0; shift < 32 && (max >>> shift) != 0; shift += 8) {
+            final int[] starts = new int[257];
+            for(int value : sorted) {
+                starts[((value >>> shift) & 0xFF) + 1] += 1;
+            }
+            for(int digit = 0; digit < 256; ++digit) {
+                starts[digit + 1] += starts[digit];
+            }
+            for(int value : sorted) {
+                buffer[starts[(value >>> shift) & 0xFF]++] = value;
+            }
+            final int[] swap = sorted;
+            sorted = buffer;
+            buffer = swap;
+        }
+        return sorted;
+    }
+}
 
-        printNumberOfJumps(inputList);
-        printNumberOfPossibilities(inputList);
+/**
+ * Counts arrangements like ArrangementCounter, with the same results, but splits the chain wherever two consecutive
+ * joltages differ by 3 and neither of them occurs twice. Both adapters at such a gap are part of every arrangement, so
+ * the segments in between can be counted independently and in parallel, and the total is the product of their counts.
+ */
+class SegmentedArrangementCounter {
+    // Sorted joltages of the adapters
+    private final int[] joltages;
+    // The first and last index into joltages of each segment, all of which except the first start are in every
+    // arrangement
+    private final int[] segmentStarts, segmentEnds;
+    private final int segments;
+    private final int parallelism;
+
+    public SegmentedArrangementCounter(int[] adapters, int parallelism) {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        this.parallelism = parallelism;
+
+        this.joltages = ArrangementCounter.sort(adapters);
+        this.segmentStarts = new int[this.joltages.length];
+        this.segmentEnds = new int[this.joltages.length];
+        int segments = 0, start = 0;
+        for(int i = 0; i < this.joltages.length; ++i) {
+            final int difference = this.joltages[i] - (i == 0 ? 0 : this.joltages[i - 1]);
+            if(difference > 3) {
+                // No adapter bridges this gap, so there is no arrangement at all
+                segments = 0;
+                start = -1;
+                break;
+            }
+            // The outlet reaches adapters of up to 3 jolts on its own, so the first gap that splits is above them
+            if(difference == 3 && this.joltages[i] > 3 && this.isUnique(i - 1) && this.isUnique(i)) {
+                this.segmentStarts[segments] = start;
+                this.segmentEnds[segments] = i - 1;
+                segments += 1;
+                start = i;
+            }
+        }
+        if(start >= 0 && this.joltages.length > 0) {
+            this.segmentStarts[segments] = start;
+            this.segmentEnds[segments] = this.joltages.length - 1;
+            segments += 1;
+        }
+        this.segments = segments;
+    }
+
+    // Whether no other adapter has the joltage at the given index
+    private boolean isUnique(int i) {
+        return (i == 0 || this.joltages[i - 1] != this.joltages[i])
+                && (i + 1 == this.joltages.length || this.joltages[i + 1] != this.joltages[i]);
+    }
+
+    public BigInteger countExact() {
+        if(this.segments == 0) {
+            return BigInteger.ZERO;
+        }
+        return this.multiplyInParallel(BigInteger.ONE, BigInteger::multiply, this::countSegmentExact);
+    }
+
+    public long countModulo(long modulus) {
+        if(modulus < 1) {
+            throw new IllegalArgumentException("Modulus must be positive: " + modulus);
+        }
+        if(this.segments == 0) {
+            return 0;
+        }
+        return this.multiplyInParallel(1 % modulus,
+                (a, b) -> multiplyModulo(a, b, modulus),
+                segment -> this.countSegmentModulo(segment, modulus));
     }
 
-    private static void printNumberOfPossibilities(List<Integer> inputList) {
-        // We need a list of Long here since Int just cannot hold that many possibilities
-        final List<Long> possibilities = new LinkedList<>();
+    /**
+     * Multiplies the counts of all segments, with chunks of consecutive segments counted on separate threads
+     */
+    private <T> T multiplyInParallel(T one, BinaryOperator<T> multiply, IntFunction<T> countSegment) {
+        final int chunks = Math.min(this.segments, this.parallelism * 4);
+        final List<Callable<T>> tasks = new ArrayList<>(chunks);
+        for(int chunk = 0; chunk < chunks; ++chunk) {
+            final int from = (int) ((long) this.segments * chunk / chunks);
+            final int to = (int) ((long) this.segments * (chunk + 1) / chunks);
+            tasks.add(() -> {
+                T product = one;
+                for(int segment = from; segment < to; ++segment) {
+                    product = multiply.apply(product, countSegment.apply(segment));
+                }
+                return product;
+            });
+        }
 
-        System.out.println(inputList);
+        final ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+        try {
+            T product = one;
+            for(Future<T> result : pool.invokeAll(tasks)) {
+                product = multiply.apply(product, result.get());
+            }
+            return product;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
 
-        for(int i = 0; i < inputList.size(); ++i) {
-            long currentPossibilities = 0;
-            if(inputList.get(i) <= 3) {
-                currentPossibilities += 1;
+    private BigInteger countSegmentExact(int segment) {
+        final int start = this.segmentStarts[segment], end = this.segmentEnds[segment];
+        try {
+            return BigInteger.valueOf(this.countSegmentModulo(segment, Long.MAX_VALUE, true));
+        } catch (ArithmeticException e) {
+            // Only long segments without any gap get here
+            final BigInteger[] possibilities = new BigInteger[end - start + 1];
+            for(int i = start; i <= end; ++i) {
+                BigInteger currentPossibilities = BigInteger.valueOf(this.initialPossibilities(start, i));
+                for(int j = Math.max(i - 3, start); j < i; ++j) {
+                    if(this.joltages[j] >= this.joltages[i] - 3) {
+                        currentPossibilities = currentPossibilities.add(possibilities[j - start]);
+                    }
+                }
+                possibilities[i - start] = currentPossibilities;
             }
+            return possibilities[end - start];
+        }
+    }
+
+    private long countSegmentModulo(int segment, long modulus) {
+        return this.countSegmentModulo(segment, modulus, false);
+    }
 
-            for (int j = Math.max(i - 3, 0); j < i; ++j) {
-                if(inputList.get(j) >= inputList.get(i) - 3) {
-                    currentPossibilities += possibilities.get(j);
+    /**
+     * @param exact Whether to throw an ArithmeticException instead of reducing by the modulus
+     */
+    private long countSegmentModulo(int segment, long modulus, boolean exact) {
+        final int start = this.segmentStarts[segment], end = this.segmentEnds[segment];
+        // A joltage is only reachable from the three joltages before it, so a window of three counts suffices
+        final long[] possibilities = new long[3];
+        for(int i = start; i <= end; ++i) {
+            long currentPossibilities = this.initialPossibilities(start, i) % modulus;
+            for(int j = Math.max(i - 3, start); j < i; ++j) {
+                if(this.joltages[j] >= this.joltages[i] - 3) {
+                    final long summand = possibilities[j % 3];
+                    if(currentPossibilities >= modulus - summand) {
+                        if(exact) {
+                            throw new ArithmeticException("long overflow");
+                        }
+                        currentPossibilities -= modulus - summand;
+                    } else {
+                        currentPossibilities += summand;
+                    }
                 }
             }
-            possibilities.add(currentPossibilities);
+            possibilities[i % 3] = currentPossibilities;
+        }
+        return possibilities[end % 3];
+    }
+
+    /**
+     * The count of a joltage before adding those of the joltages before it. The first segment starts from the outlet,
+     * which reaches the joltages of up to 3 directly, while later segments start from their first adapter.
+     */
+    private long initialPossibilities(int start, int i) {
+        if(start == 0) {
+            return this.joltages[i] <= 3 ? 1 : 0;
+        }
+        return i == start ? 1 : 0;
+    }
+
+    private static long multiplyModulo(long a, long b, long modulus) {
+        // Below this modulus, the product of two residues fits into a long
+        if(modulus <= 3037000499L) {
+            return a * b % modulus;
         }
-        System.out.println(possibilities.get(possibilities.size() - 1));
+        return BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)).mod(BigInteger.valueOf(modulus)).longValue();
+    }
+}
+
+public class Day10 {
+    public static void main(String[] args) throws IOException {
+        final int[] adapters = Files.readAllLines(Paths.get("input", "day10")).stream()
+                .mapToInt(Integer::parseInt)
+                .toArray();
+        final ArrangementCounter counter = new ArrangementCounter(adapters);
+
+        printNumberOfJumps(counter.getJoltages());
+        printNumberOfPossibilities(counter);
+    }
+
+    private static void printNumberOfPossibilities(ArrangementCounter counter) {
+        System.out.println(Arrays.toString(counter.getJoltages()));
+        System.out.println(counter.count());
     }
 
-    private static void printNumberOfJumps(List<Integer> inputList) {
+    private static void printNumberOfJumps(int[] joltages) {
         int numberOfOneJumps = 0;
         int numberOfThreeJumps = 0;
         int currentJoltage = 0;
-        for(Integer nextJoltage : inputList) {
+        for(int nextJoltage : joltages) {
             if(nextJoltage == currentJoltage + 1) {
                 numberOfOneJumps += 1;
             } else if (nextJoltage == currentJoltage + 3) {
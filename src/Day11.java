@@ -1,9 +1,22 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -40,15 +53,26 @@ enum CellState{
     }
 }
 
+enum Neighborhood {
+    // The eight adjacent cells
+    VICINITY,
+    // The first seat in each of the eight directions
+    SIGHTLINE
+}
+
 interface EvolutionRule {
-    boolean isApplicable(CellularAutomaton automaton, int x, int y);
+    // The rule is applied to exactly the cells in this state
+    CellState getApplicableState();
     CellState evolve(CellularAutomaton automaton, int x, int y);
+
+    // The cells besides (x, y) itself that evolve may read
+    Neighborhood getNeighborhood();
 }
 
 class SpawnRule implements EvolutionRule {
     @Override
-    public boolean isApplicable(CellularAutomaton automaton, int x, int y) {
-        return automaton.getState(x, y).equals(CellState.EMPTY_SEAT);
+    public CellState getApplicableState() {
+        return CellState.EMPTY_SEAT;
     }
 
     @Override
@@ -56,12 +80,17 @@ class SpawnRule implements EvolutionRule {
         final long neighboringOccupiedSeats = automaton.countInVicinity(x, y, CellState.OCCUPIED_SEAT);
         return neighboringOccupiedSeats == 0 ? CellState.OCCUPIED_SEAT : CellState.EMPTY_SEAT;
     }
+
+    @Override
+    public Neighborhood getNeighborhood() {
+        return Neighborhood.VICINITY;
+    }
 }
 
 class SpawnRule2 implements EvolutionRule {
     @Override
-    public boolean isApplicable(CellularAutomaton automaton, int x, int y) {
-        return automaton.getState(x, y).equals(CellState.EMPTY_SEAT);
+    public CellState getApplicableState() {
+        return CellState.EMPTY_SEAT;
     }
 
     @Override
@@ -69,13 +98,18 @@ class SpawnRule2 implements EvolutionRule {
         final long neighboringOccupiedSeats = automaton.countInSightline(x, y, CellState.OCCUPIED_SEAT);
         return neighboringOccupiedSeats == 0 ? CellState.OCCUPIED_SEAT : CellState.EMPTY_SEAT;
     }
+
+    @Override
+    public Neighborhood getNeighborhood() {
+        return Neighborhood.SIGHTLINE;
+    }
 }
 
 class KillRule implements EvolutionRule {
 
     @Override
-    public boolean isApplicable(CellularAutomaton automaton, int x, int y) {
-        return automaton.getState(x, y).equals(CellState.OCCUPIED_SEAT);
+    public CellState getApplicableState() {
+        return CellState.OCCUPIED_SEAT;
     }
 
     @Override
@@ -83,13 +117,18 @@ class KillRule implements EvolutionRule {
         final long neighboringOccupiedSeats = automaton.countInVicinity(x, y, CellState.OCCUPIED_SEAT);
         return neighboringOccupiedSeats >= 4 ? CellState.EMPTY_SEAT : CellState.OCCUPIED_SEAT;
     }
+
+    @Override
+    public Neighborhood getNeighborhood() {
+        return Neighborhood.VICINITY;
+    }
 }
 
 class KillRule2 implements EvolutionRule {
 
     @Override
-    public boolean isApplicable(CellularAutomaton automaton, int x, int y) {
-        return automaton.getState(x, y).equals(CellState.OCCUPIED_SEAT);
+    public CellState getApplicableState() {
+        return CellState.OCCUPIED_SEAT;
     }
 
     @Override
@@ -97,131 +136,554 @@ class KillRule2 implements EvolutionRule {
         final long neighboringOccupiedSeats = automaton.countInSightline(x, y, CellState.OCCUPIED_SEAT);
         return neighboringOccupiedSeats >= 5 ? CellState.EMPTY_SEAT : CellState.OCCUPIED_SEAT;
     }
+
+    @Override
+    public Neighborhood getNeighborhood() {
+        return Neighborhood.SIGHTLINE;
+    }
+}
+
+class CellGrid {
+    private static final CellState[] STATES = CellState.values();
+    static final byte UNDEFINED = (byte) CellState.UNDEFINED.ordinal();
+
+    private final int width, height, stride;
+
+    // Both buffers carry a one-cell border of UNDEFINED, so neighbor reads never need bounds checks
+    private byte[] current, next;
+
+    public CellGrid(List<String> lines) {
+        this.height = lines.size();
+        this.width = lines.get(0).length();
+        this.stride = this.width + 2;
+        this.current = new byte[this.stride * (this.height + 2)];
+        Arrays.fill(this.current, UNDEFINED);
+        for(int y = 0; y < this.height; ++y) {
+            final String line = lines.get(y);
+            if(line.length() != this.width) {
+                throw new IllegalArgumentException("Line " + y + " has length " + line.length() + ", expected " + this.width);
+            }
+            for(int x = 0; x < this.width; ++x) {
+                this.current[this.index(x, y)] = (byte) CellState.fromChar(line.charAt(x)).ordinal();
+            }
+        }
+        this.next = this.current.clone();
+    }
+
+    public CellGrid(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.stride = width + 2;
+        this.current = new byte[this.stride * (height + 2)];
+        Arrays.fill(this.current, UNDEFINED);
+        this.next = this.current.clone();
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    public int getHeight() {
+        return this.height;
+    }
+
+    public int getStride() {
+        return this.stride;
+    }
+
+    public int index(int x, int y) {
+        return (y + 1) * this.stride + x + 1;
+    }
+
+    public int getX(int index) {
+        return index % this.stride - 1;
+    }
+
+    public int getY(int index) {
+        return index / this.stride - 1;
+    }
+
+    public byte get(int index) {
+        return this.current[index];
+    }
+
+    // Writes directly to the front buffer, for callers that evolve only some cells and do not swap
+    public void set(int index, byte value) {
+        this.current[index] = value;
+    }
+
+    public CellState getState(int index) {
+        return STATES[this.current[index]];
+    }
+
+    public void setNext(int index, byte value) {
+        this.next[index] = value;
+    }
+
+    public void fillRows(int fromY, int toY, byte value) {
+        for(int y = fromY; y < toY; ++y) {
+            Arrays.fill(this.current, this.index(0, y), this.index(this.width, y), value);
+        }
+    }
+
+    // Reads rows of width bytes each, without border, into the front buffer
+    public void readRows(ByteBuffer source, int fromY, int toY) {
+        for(int y = fromY; y < toY; ++y) {
+            source.get(this.current, this.index(0, y), this.width);
+        }
+    }
+
+    // Writes rows of width bytes each, without border, from the back buffer
+    public void writeNextRows(ByteBuffer target, int fromY, int toY) {
+        for(int y = fromY; y < toY; ++y) {
+            target.put(this.next, this.index(0, y), this.width);
+        }
+    }
+
+    public void swap() {
+        final byte[] previous = this.current;
+        this.current = this.next;
+        this.next = previous;
+    }
+
+    // Zobrist-style contribution of a single cell, so that the hash of a grid can be updated cell by cell
+    public static long hash(int index, byte value) {
+        long z = ((long) index << 2 | value) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    public long hash() {
+        long hash = 0;
+        for(int index = 0; index < this.current.length; ++index) {
+            hash += hash(index, this.current[index]);
+        }
+        return hash;
+    }
+
+    public long count(CellState stateToCount) {
+        final byte value = (byte) stateToCount.ordinal();
+        long count = 0;
+        for(byte cell : this.current) {
+            if(cell == value) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+}
+
+/**
+ * For every cell, the grid indices of the seats visible along the eight sightlines, stored in CSR form.
+ * Relies on the floor layout never changing, which holds as long as rules only toggle between seat states.
+ */
+class SightlineIndex {
+    private static final byte NO_SEAT = (byte) CellState.NO_SEAT.ordinal();
+    private static final byte UNDEFINED = (byte) CellState.UNDEFINED.ordinal();
+
+    private final int width;
+
+    // The visible seats of cell (x, y) are targets[starts[y * width + x]] to targets[starts[y * width + x + 1] - 1]
+    private final int[] starts;
+    private final int[] targets;
+
+    public SightlineIndex(CellGrid grid) {
+        this.width = grid.getWidth();
+        final int stride = grid.getStride();
+        final int[] steps = {
+                -stride - 1, -stride, -stride + 1,
+                -1, 1,
+                stride - 1, stride, stride + 1
+        };
+
+        final int cells = grid.getWidth() * grid.getHeight();
+        this.starts = new int[cells + 1];
+        int[] targets = new int[Math.max(cells, 8)];
+        int size = 0;
+        for(int y = 0; y < grid.getHeight(); ++y) {
+            for(int x = 0; x < grid.getWidth(); ++x) {
+                final int center = grid.index(x, y);
+                this.starts[y * this.width + x] = size;
+                if(grid.get(center) == NO_SEAT) {
+                    continue;
+                }
+                for(int step : steps) {
+                    int current = center + step;
+                    while(grid.get(current) == NO_SEAT) {
+                        current += step;
+                    }
+                    if(grid.get(current) != UNDEFINED) {
+                        if(size == targets.length) {
+                            targets = Arrays.copyOf(targets, targets.length * 2);
+                        }
+                        targets[size++] = current;
+                    }
+                }
+            }
+        }
+        this.starts[cells] = size;
+        this.targets = Arrays.copyOf(targets, size);
+    }
+
+    public int getStart(int x, int y) {
+        return this.starts[y * this.width + x];
+    }
+
+    public int getEnd(int x, int y) {
+        return this.starts[y * this.width + x + 1];
+    }
+
+    public int getTarget(int i) {
+        return this.targets[i];
+    }
+
+    public int count(CellGrid grid, int x, int y, byte value) {
+        final int cell = y * this.width + x;
+        int count = 0;
+        for(int i = this.starts[cell]; i < this.starts[cell + 1]; ++i) {
+            if(grid.get(this.targets[i]) == value) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+}
+
+class RoundStatistics {
+    int changedCells = 0;
+    // The change of the grid hash, see CellGrid.hash
+    long hashDelta = 0;
+
+    public void record(int index, byte oldValue, byte newValue) {
+        this.changedCells += 1;
+        this.hashDelta += CellGrid.hash(index, newValue) - CellGrid.hash(index, oldValue);
+    }
+
+    public void add(RoundStatistics other) {
+        this.changedCells += other.changedCells;
+        this.hashDelta += other.hashDelta;
+    }
+}
+
+/**
+ * Remembers the hashes of all generations seen so far to detect when the evolution enters a cycle. As only hashes
+ * are compared, a collision may report a cycle that does not exist, which is unlikely enough with 64 bits.
+ */
+class CycleDetector {
+    private final Map<Long, Integer> generations = new HashMap<>();
+    private long hash;
+    private int generation = 0;
+    private int cycleLength = 0;
+
+    public CycleDetector(long initialHash) {
+        this.hash = initialHash;
+        this.generations.put(initialHash, 0);
+    }
+
+    /**
+     * @return True if the generation reached by this round has been seen before
+     */
+    public boolean advance(RoundStatistics round) {
+        this.hash += round.hashDelta;
+        this.generation += 1;
+        final Integer previous = this.generations.putIfAbsent(this.hash, this.generation);
+        if(previous != null) {
+            this.cycleLength = this.generation - previous;
+            return true;
+        }
+        return false;
+    }
+
+    public int getCycleLength() {
+        return this.cycleLength;
+    }
 }
 
 class CellularAutomaton {
-    private CellState[][] state;
+    private static final byte NO_SEAT = (byte) CellState.NO_SEAT.ordinal();
+
+    private final CellGrid grid;
+
+    private final int[] vicinityOffsets;
+
+    private volatile SightlineIndex sightlineIndex;
+
+    // The rule to apply to cells in each state, indexed by ordinal
+    private final EvolutionRule[] ruleTable = new EvolutionRule[CellState.values().length];
+
+    private int parallelism = 1;
+
+    private boolean incremental = false;
+
+    private boolean cycleDetection = false;
 
-    private final List<EvolutionRule> rules = new LinkedList<>();
+    private int cycleLength = 0;
 
     public CellularAutomaton(List<String> lines) {
-        this.state = lines.stream()
-                .map(line -> {
-                    // Taken from https://stackoverflow.com/a/31557292
-                    final char[] charArray = line.toCharArray();
-                    return IntStream.range(0, charArray.length).mapToObj(i -> charArray[i])
-                            .map(CellState::fromChar)
-                            .map(e -> {
-                                if(e==null) {
-                                    throw new IllegalStateException();
-                                } else {
-                                    return e;
-                                }
-                            })
-                            .toArray(size -> new CellState[size]);
-                }).toArray(size -> new CellState[size][]);
+        this(new CellGrid(lines));
+    }
+
+    CellularAutomaton(CellGrid grid) {
+        this.grid = grid;
+        final int stride = this.grid.getStride();
+        this.vicinityOffsets = new int[] {
+                -stride - 1, -stride, -stride + 1,
+                -1, 1,
+                stride - 1, stride, stride + 1
+        };
+    }
+
+    CellGrid getGrid() {
+        return this.grid;
     }
 
     public CellState getState(int x, int y) {
-        if(0 <= x && x < this.getWidth() && 0 <= y && y < this.getHeight()) {
-            final CellState returnValue = this.state[y][x];
-            if(returnValue == null) {
-                throw new IllegalArgumentException();
-            }
-            return this.state[y][x];
+        if(-1 <= x && x <= this.getWidth() && -1 <= y && y <= this.getHeight()) {
+            return this.grid.getState(this.grid.index(x, y));
         } else {
             return CellState.UNDEFINED;
         }
     }
 
     public void addRule(EvolutionRule rule) {
-        this.rules.add(rule);
+        final int applicableState = rule.getApplicableState().ordinal();
+        if(this.ruleTable[applicableState] != null) {
+            throw new IllegalStateException("Conflicting rules for state " + rule.getApplicableState());
+        }
+        this.ruleTable[applicableState] = rule;
     }
 
-    public void evolveUntilStability() {
-        CellState[][] nextState = this.singleEvolutionRound();
-        // As is turns out, Object[].equals does not do a deep compare
-        while(!this.isSameState(nextState)) {
-            this.state = nextState;
-            nextState = this.singleEvolutionRound();
+    /**
+     * Sets the number of worker threads used to evolve the grid. With a parallelism above one, each round is split
+     * into bands of rows that are evolved concurrently. Rules must then be safe to evaluate from several threads.
+     */
+    public void setParallelism(int parallelism) {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
         }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Enables evolving only the cells that changed in the previous round and the cells whose rules read them, as
+     * given by the neighborhoods of the rules. Incremental evolution always runs on the calling thread.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
     }
 
-    public boolean isSameState(CellState[][] other) {
-        for(int i = 0; i < other.length; ++i) {
-            for(int j = 0; j < other[0].length; ++j) {
-                if(!other[i][j].equals(this.state[i][j])) {
-                    return false;
+    /**
+     * Enables stopping the evolution once it returns to an earlier generation, so that rule sets that oscillate
+     * instead of converging terminate. The length of the detected cycle is available from getCycleLength.
+     */
+    public void setCycleDetection(boolean cycleDetection) {
+        this.cycleDetection = cycleDetection;
+    }
+
+    /**
+     * @return The number of generations in the cycle that stopped the last evolution, or 0 if it became stable
+     */
+    public int getCycleLength() {
+        return this.cycleLength;
+    }
+
+    public void evolveUntilStability() {
+        final CycleDetector cycleDetector = this.cycleDetection ? new CycleDetector(this.grid.hash()) : null;
+        if(this.incremental) {
+            this.evolveIncrementallyUntilStability(cycleDetector);
+        } else {
+            final ForkJoinPool pool = this.parallelism > 1 ? new ForkJoinPool(this.parallelism) : null;
+            try {
+                RoundStatistics round = this.singleEvolutionRound(pool);
+                while(round.changedCells > 0 && !(cycleDetector != null && cycleDetector.advance(round))) {
+                    round = this.singleEvolutionRound(pool);
+                }
+            } finally {
+                if(pool != null) {
+                    pool.shutdown();
                 }
             }
         }
-        return true;
+        this.cycleLength = cycleDetector != null ? cycleDetector.getCycleLength() : 0;
     }
 
     public long countOccupiedSeats() {
-        return Arrays.stream(this.state)
-                .flatMap(Stream::of)
-                .filter(state -> state.equals(CellState.OCCUPIED_SEAT))
-                .count();
+        return this.grid.count(CellState.OCCUPIED_SEAT);
+    }
+
+    /**
+     * Computes the next generation into the back buffer and swaps it in
+     * @param pool The pool to evolve bands of rows on, or null to evolve on the calling thread
+     */
+    private RoundStatistics singleEvolutionRound(ForkJoinPool pool) {
+        final RoundStatistics round;
+        if(pool == null) {
+            round = this.evolveRows(0, this.getHeight());
+        } else {
+            round = new RoundStatistics();
+            // Use more bands than threads, so that a few slow bands do not leave the other threads idle
+            final int bands = Math.min(this.getHeight(), this.parallelism * 4);
+            final List<Callable<RoundStatistics>> tasks = new ArrayList<>(bands);
+            for(int band = 0; band < bands; ++band) {
+                final int fromY = (int) ((long) this.getHeight() * band / bands);
+                final int toY = (int) ((long) this.getHeight() * (band + 1) / bands);
+                tasks.add(() -> this.evolveRows(fromY, toY));
+            }
+            for(Future<RoundStatistics> result : pool.invokeAll(tasks)) {
+                try {
+                    round.add(result.get());
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        this.grid.swap();
+        return round;
     }
 
+    /**
+     * Writes the next state of all cells in the rows from fromY (inclusive) to toY (exclusive) to the back buffer
+     */
+    RoundStatistics evolveRows(int fromY, int toY) {
+        final RoundStatistics round = new RoundStatistics();
+        for(int yCur = fromY; yCur < toY; ++yCur) {
+            for(int xCur = 0; xCur < this.getWidth(); ++xCur) {
+                final int index = this.grid.index(xCur, yCur);
+                final byte oldValue = this.grid.get(index);
+                final byte newValue = this.evolveCell(xCur, yCur, oldValue);
+                this.grid.setNext(index, newValue);
+                if(newValue != oldValue) {
+                    round.record(index, oldValue, newValue);
+                }
+            }
+        }
+        return round;
+    }
 
-    private CellState[][] singleEvolutionRound() {
-        final CellState[][] newState = new CellState[this.getHeight()][this.getWidth()];
-        for(int xCur = 0; xCur < this.getWidth(); ++xCur) {
-            for(int yCur = 0; yCur < this.getHeight(); ++yCur) {
-                final int finalXCur = xCur;
-                final int finalYCur = yCur;
-                final List<EvolutionRule> applicableRules = this.rules.stream()
-                        .filter(rule -> rule.isApplicable(this, finalXCur, finalYCur))
-                        .collect(Collectors.toList());
-                if(applicableRules.size() > 1) {
-                    throw new IllegalStateException();
+    private byte evolveCell(int x, int y, byte oldValue) {
+        final EvolutionRule rule = this.ruleTable[oldValue];
+        return rule == null ? oldValue : (byte) rule.evolve(this, x, y).ordinal();
+    }
+
+    private void evolveIncrementallyUntilStability(CycleDetector cycleDetector) {
+        final boolean vicinity = this.usesNeighborhood(Neighborhood.VICINITY);
+        final boolean sightline = this.usesNeighborhood(Neighborhood.SIGHTLINE);
+        final SightlineIndex index = sightline ? this.getSightlineIndex() : null;
+
+        final int cells = this.getWidth() * this.getHeight();
+        final boolean[] queued = new boolean[this.grid.getStride() * (this.getHeight() + 2)];
+        int[] active = new int[cells];
+        int[] nextActive = new int[cells];
+        final int[] changedCells = new int[cells];
+        final byte[] changedValues = new byte[cells];
+
+        int activeSize = 0;
+        for(int y = 0; y < this.getHeight(); ++y) {
+            for(int x = 0; x < this.getWidth(); ++x) {
+                active[activeSize++] = this.grid.index(x, y);
+            }
+        }
+
+        while(activeSize > 0) {
+            // Evaluate all active cells against the current state before writing any of them back
+            final RoundStatistics round = new RoundStatistics();
+            int changedSize = 0;
+            for(int i = 0; i < activeSize; ++i) {
+                final int cell = active[i];
+                queued[cell] = false;
+                final byte oldValue = this.grid.get(cell);
+                final byte newValue = this.evolveCell(this.grid.getX(cell), this.grid.getY(cell), oldValue);
+                if(newValue != oldValue) {
+                    round.record(cell, oldValue, newValue);
+                    changedCells[changedSize] = cell;
+                    changedValues[changedSize] = newValue;
+                    changedSize += 1;
+                }
+            }
+
+            int nextActiveSize = 0;
+            for(int i = 0; i < changedSize; ++i) {
+                final int cell = changedCells[i];
+                this.grid.set(cell, changedValues[i]);
+                nextActiveSize = enqueue(nextActive, nextActiveSize, queued, cell);
+                if(vicinity) {
+                    for(int offset : this.vicinityOffsets) {
+                        if(this.grid.get(cell + offset) != CellGrid.UNDEFINED) {
+                            nextActiveSize = enqueue(nextActive, nextActiveSize, queued, cell + offset);
+                        }
+                    }
                 }
-                if(!applicableRules.isEmpty()) {
-                    newState[yCur][xCur] = applicableRules.get(0).evolve(this, xCur, yCur);
-                } else {
-                    newState[yCur][xCur] = this.getState(xCur, yCur);
+                if(sightline) {
+                    // Visibility is symmetric, so the seats that see this cell are exactly the seats it sees
+                    final int x = this.grid.getX(cell), y = this.grid.getY(cell);
+                    for(int j = index.getStart(x, y); j < index.getEnd(x, y); ++j) {
+                        nextActiveSize = enqueue(nextActive, nextActiveSize, queued, index.getTarget(j));
+                    }
                 }
             }
+
+            if(changedSize > 0 && cycleDetector != null && cycleDetector.advance(round)) {
+                return;
+            }
+
+            final int[] previousActive = active;
+            active = nextActive;
+            nextActive = previousActive;
+            activeSize = nextActiveSize;
+        }
+    }
+
+    private boolean usesNeighborhood(Neighborhood neighborhood) {
+        return Arrays.stream(this.ruleTable)
+                .anyMatch(rule -> rule != null && rule.getNeighborhood() == neighborhood);
+    }
+
+    private static int enqueue(int[] queue, int size, boolean[] queued, int cell) {
+        if(!queued[cell]) {
+            queued[cell] = true;
+            queue[size++] = cell;
         }
-        return newState;
+        return size;
     }
 
-    private int getWidth() {
-        return this.state[0].length;
+    int getWidth() {
+        return this.grid.getWidth();
     }
 
-    private int getHeight() {
-        return this.state.length;
+    int getHeight() {
+        return this.grid.getHeight();
     }
 
     CellState getSeatInSightline(int xStart, int yStart, int xOffset, int yOffset) {
-        int currentX = xStart, currentY = yStart;
-        CellState currentCellState;
+        final int step = yOffset * this.grid.getStride() + xOffset;
+        int current = this.grid.index(xStart, yStart);
+        byte value;
+        // The UNDEFINED border ends every sightline that leaves the grid
         do {
-            currentX += xOffset;
-            currentY += yOffset;
-            currentCellState = getState(currentX, currentY);
-        } while (0 <= currentX && currentX < this.getWidth() && 0 <= currentY && currentY < this.getHeight() &&
-            currentCellState.equals(CellState.NO_SEAT));
-        return currentCellState;
+            current += step;
+            value = this.grid.get(current);
+        } while (value == NO_SEAT);
+        return this.grid.getState(current);
     }
 
+    // Only valid for cells inside the grid, which is all that rules are ever evaluated on
     public long countInVicinity(int x, int y, CellState stateToCount) {
-        return Stream.of(
-                this.getState(x - 1, y-1),
-                this.getState(x, y-1),
-                this.getState(x + 1, y - 1),
-                this.getState(x-1, y), this.getState(x+1, y),
-                this.getState(x - 1, y + 1),
-                this.getState(x, y + 1),
-                this.getState(x + 1, y + 1))
-                .filter(state -> state.equals(stateToCount))
-                .count();
+        final int center = this.grid.index(x, y);
+        final byte value = (byte) stateToCount.ordinal();
+        int count = 0;
+        for(int offset : this.vicinityOffsets) {
+            if(this.grid.get(center + offset) == value) {
+                count += 1;
+            }
+        }
+        return count;
     }
 
     public long countInSightline(int x, int y, CellState stateToCount) {
+        if(stateToCount.equals(CellState.EMPTY_SEAT) || stateToCount.equals(CellState.OCCUPIED_SEAT)) {
+            return this.getSightlineIndex().count(this.grid, x, y, (byte) stateToCount.ordinal());
+        }
         return Stream.of(
                 this.getSeatInSightline(x, y, -1, -1),
                 this.getSeatInSightline(x, y, -1, 0),
@@ -234,6 +696,204 @@ class CellularAutomaton {
                 .filter(state -> state.equals(stateToCount))
                 .count();
     }
+
+    // Built on first use, since only the sightline rules need it. Rounds may be evolved in parallel, hence the locking
+    private SightlineIndex getSightlineIndex() {
+        SightlineIndex index = this.sightlineIndex;
+        if(index == null) {
+            synchronized (this) {
+                index = this.sightlineIndex;
+                if(index == null) {
+                    index = new SightlineIndex(this.grid);
+                    this.sightlineIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+}
+
+/**
+ * Maps rows of a generation file in windows of many tiles, so that consecutive tiles share one mapping and a round only
+ * maps each part of the file once instead of once per tile
+ */
+class RowWindow {
+    // Largest number of bytes mapped at once, unless a single tile with its halo needs more
+    private static final int MAX_WINDOW = 1 << 30;
+
+    private final FileChannel channel;
+    private final FileChannel.MapMode mode;
+    private final int width, height, windowHeight;
+
+    private MappedByteBuffer window;
+    private int windowFromY, windowToY;
+
+    public RowWindow(FileChannel channel, FileChannel.MapMode mode, int width, int height, int minRows) {
+        this.channel = channel;
+        this.mode = mode;
+        this.width = width;
+        this.height = height;
+        this.windowHeight = Math.max(minRows, MAX_WINDOW / Math.max(width, 1));
+    }
+
+    // Returns the given rows, which must not be more than the window holds, remapping if they are not in the window
+    public ByteBuffer rows(int fromY, int toY) throws IOException {
+        if(this.window == null || fromY < this.windowFromY || toY > this.windowToY) {
+            this.windowFromY = fromY;
+            this.windowToY = (int) Math.min((long) fromY + this.windowHeight, this.height);
+            this.window = this.channel.map(this.mode, (long) fromY * this.width, (long) (this.windowToY - fromY) * this.width);
+        }
+        final ByteBuffer rows = this.window.duplicate();
+        rows.position((fromY - this.windowFromY) * this.width);
+        rows.limit((toY - this.windowFromY) * this.width);
+        return rows;
+    }
+}
+
+/**
+ * Evolves layouts that do not fit into memory. The generations are kept in two memory-mapped files of one byte per
+ * cell, and each round evolves one tile of rows at a time together with the halo rows directly above and below it.
+ * Since only these halo rows are available, only rules on the vicinity of a cell are supported.
+ */
+class TiledCellularAutomaton implements Closeable {
+    private final int width, height, tileHeight;
+
+    private Path current, next;
+
+    // Evaluates the rules on the currently loaded tile, with the halo rows as its first and last row
+    private final CellularAutomaton tile;
+
+    public TiledCellularAutomaton(Path layout, Path workDirectory, int tileHeight) throws IOException {
+        if(tileHeight < 1) {
+            throw new IllegalArgumentException("Tile height must be positive: " + tileHeight);
+        }
+        int width = -1, height = 0;
+        try {
+            this.current = Files.createTempFile(workDirectory, "day11-", ".generation");
+            this.next = Files.createTempFile(workDirectory, "day11-", ".generation");
+
+            try(BufferedReader reader = Files.newBufferedReader(layout);
+                FileChannel channel = FileChannel.open(this.current, StandardOpenOption.WRITE)) {
+                ByteBuffer row = null;
+                String line;
+                while((line = reader.readLine()) != null) {
+                    if(width == -1) {
+                        width = line.length();
+                        row = ByteBuffer.allocate(width);
+                    }
+                    if(line.length() != width) {
+                        throw new IllegalArgumentException("Line " + height + " has length " + line.length() + ", expected " + width);
+                    }
+                    row.clear();
+                    for(int x = 0; x < width; ++x) {
+                        row.put((byte) CellState.fromChar(line.charAt(x)).ordinal());
+                    }
+                    row.flip();
+                    while(row.hasRemaining()) {
+                        channel.write(row);
+                    }
+                    height += 1;
+                }
+            }
+            if(height == 0) {
+                throw new IllegalArgumentException("Empty layout: " + layout);
+            }
+            if((long) (tileHeight + 2) * width > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Tiles of " + tileHeight + " rows exceed the size of a single mapping");
+            }
+        } catch (IOException | RuntimeException e) {
+            // Nobody can close an automaton whose constructor failed, so the files would be left behind otherwise
+            try {
+                this.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+
+        this.width = width;
+        this.height = height;
+        this.tileHeight = tileHeight;
+        this.tile = new CellularAutomaton(new CellGrid(width, tileHeight + 2));
+    }
+
+    public void addRule(EvolutionRule rule) {
+        if(rule.getNeighborhood() != Neighborhood.VICINITY) {
+            throw new IllegalArgumentException("Tiles only hold the vicinity of their rows, not " + rule.getNeighborhood());
+        }
+        this.tile.addRule(rule);
+    }
+
+    public void evolveUntilStability() throws IOException {
+        while(this.singleEvolutionRound() > 0) {
+            // Keep evolving until a round leaves every cell unchanged
+        }
+    }
+
+    public long countOccupiedSeats() throws IOException {
+        final byte occupied = (byte) CellState.OCCUPIED_SEAT.ordinal();
+        long count = 0;
+        try(FileChannel channel = FileChannel.open(this.current, StandardOpenOption.READ)) {
+            final RowWindow window = this.window(channel, FileChannel.MapMode.READ_ONLY);
+            for(int fromY = 0; fromY < this.height; fromY += this.tileHeight) {
+                final int toY = Math.min(fromY + this.tileHeight, this.height);
+                final ByteBuffer rows = window.rows(fromY, toY);
+                while(rows.hasRemaining()) {
+                    if(rows.get() == occupied) {
+                        count += 1;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of cells that changed their state in this round
+     */
+    private long singleEvolutionRound() throws IOException {
+        final CellGrid tileGrid = this.tile.getGrid();
+        long changedCells = 0;
+        try(FileChannel source = FileChannel.open(this.current, StandardOpenOption.READ);
+            FileChannel target = FileChannel.open(this.next, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final RowWindow sourceWindow = this.window(source, FileChannel.MapMode.READ_ONLY);
+            final RowWindow targetWindow = this.window(target, FileChannel.MapMode.READ_WRITE);
+            for(int fromY = 0; fromY < this.height; fromY += this.tileHeight) {
+                final int toY = Math.min(fromY + this.tileHeight, this.height);
+                final int haloFromY = Math.max(fromY - 1, 0);
+                final int haloToY = Math.min(toY + 1, this.height);
+
+                // Tile row 0 holds the row above fromY, so the row of the grid at haloFromY lands at this tile row
+                final int firstTileRow = haloFromY - fromY + 1;
+                final int lastTileRow = firstTileRow + haloToY - haloFromY;
+                tileGrid.fillRows(0, firstTileRow, CellGrid.UNDEFINED);
+                tileGrid.readRows(sourceWindow.rows(haloFromY, haloToY), firstTileRow, lastTileRow);
+                tileGrid.fillRows(lastTileRow, this.tileHeight + 2, CellGrid.UNDEFINED);
+
+                changedCells += this.tile.evolveRows(1, toY - fromY + 1).changedCells;
+                tileGrid.writeNextRows(targetWindow.rows(fromY, toY), 1, toY - fromY + 1);
+            }
+        }
+
+        final Path previous = this.current;
+        this.current = this.next;
+        this.next = previous;
+        return changedCells;
+    }
+
+    private RowWindow window(FileChannel channel, FileChannel.MapMode mode) {
+        return new RowWindow(channel, mode, this.width, this.height, this.tileHeight + 2);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(this.current != null) {
+            Files.deleteIfExists(this.current);
+        }
+        if(this.next != null) {
+            Files.deleteIfExists(this.next);
+        }
+    }
 }
 
 public class Day11 {
@@ -241,6 +901,7 @@ public class Day11 {
         CellularAutomaton automaton = new CellularAutomaton(Files.readAllLines(Paths.get("input", "day11")));
         automaton.addRule(new SpawnRule());
         automaton.addRule(new KillRule());
+        automaton.setParallelism(Runtime.getRuntime().availableProcessors());
         automaton.evolveUntilStability();
 
         System.out.println(automaton.countOccupiedSeats());
@@ -248,15 +909,17 @@ public class Day11 {
         CellularAutomaton automaton2 = new CellularAutomaton(Files.readAllLines(Paths.get("input", "day11")));
         automaton2.addRule(new SpawnRule2());
         automaton2.addRule(new KillRule2());
+        automaton2.setIncremental(true);
         automaton2.evolveUntilStability();
 
         System.out.println(automaton2.countOccupiedSeats());
     }
 
     // Used for debugging during development
-    public static void printArray(CellState[][] state) {
-        System.out.println(Arrays.stream(state)
-                .map(array -> Arrays.stream(array)
+    public static void printArray(CellularAutomaton automaton) {
+        System.out.println(IntStream.range(0, automaton.getHeight())
+                .mapToObj(y -> IntStream.range(0, automaton.getWidth())
+                        .mapToObj(x -> automaton.getState(x, y))
                         .map(CellState::toChar)
                         .map(String::valueOf)
                         .collect(Collectors.joining()))
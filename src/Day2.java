@@ -1,7 +1,16 @@
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.stream.Collectors;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 class Policy {
     private int lowIndex, highIndex;
@@ -52,18 +61,262 @@ class Line {
     }
 }
 
+class PasswordAudit {
+    long lines = 0;
+    long conforming1 = 0;
+    long conforming2 = 0;
+
+    public void add(PasswordAudit other) {
+        this.lines += other.lines;
+        this.conforming1 += other.conforming1;
+        this.conforming2 += other.conforming2;
+    }
+}
+
+/**
+ * Checks lines like "1-3 a: abcde" against both policies in a single pass over a memory-mapped file. Lines are parsed
+ * in place in the mapped bytes, so no Strings or other objects are created per line. Lines are read as UTF-8, and lines
+ * with non-ASCII bytes take a slower path that counts characters instead of bytes.
+ */
+class PasswordScanner {
+    // Largest number of bytes mapped at once, which is the limit on the length of a single line as well
+    private static final int MAX_WINDOW = 1 << 30;
+
+    // Smallest number of bytes worth handing to a separate worker
+    private static final long MIN_CHUNK = 1 << 20;
+
+    public PasswordAudit scan(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return this.scan(channel, 0, channel.size());
+        }
+    }
+
+    /**
+     * Splits the file into chunks that start at line beginnings and scans them on separate threads
+     */
+    public PasswordAudit scanInParallel(Path path, int parallelism) throws IOException {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            // Chunks below MIN_CHUNK cost more to schedule than to scan, so small files use fewer chunks than threads
+            final int chunks = (int) Math.max(1, Math.min(parallelism * 4L, size / MIN_CHUNK));
+            final long[] boundaries = new long[chunks + 1];
+            for(int chunk = 1; chunk < chunks; ++chunk) {
+                boundaries[chunk] = alignToLineStart(channel, Math.max(boundaries[chunk - 1], size * chunk / chunks), size);
+            }
+            boundaries[chunks] = size;
+
+            final List<Callable<PasswordAudit>> tasks = new ArrayList<>(chunks);
+            for(int chunk = 0; chunk < chunks; ++chunk) {
+                final long start = boundaries[chunk], end = boundaries[chunk + 1];
+                if(start < end) {
+                    tasks.add(() -> this.scan(channel, start, end));
+                }
+            }
+
+            final ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                final PasswordAudit audit = new PasswordAudit();
+                for(Future<PasswordAudit> result : pool.invokeAll(tasks)) {
+                    audit.add(result.get());
+                }
+                return audit;
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                if(e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    // Returns the first position at or after the given one that begins a line, or the size of the file
+    private static long alignToLineStart(FileChannel channel, long position, long size) throws IOException {
+        if(position == 0) {
+            return 0;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(4096);
+        // A line begins at position exactly if the byte before it ends a line
+        long current = position - 1;
+        while(current < size) {
+            buffer.clear();
+            final int read = channel.read(buffer, current);
+            if(read <= 0) {
+                break;
+            }
+            for(int i = 0; i < read; ++i) {
+                if(buffer.get(i) == '\n') {
+                    return current + i + 1;
+                }
+            }
+            current += read;
+        }
+        return size;
+    }
+
+    /**
+     * Scans the lines in the given range of bytes, which has to start at the beginning of a line and end at the end of
+     * one or at the end of the file
+     */
+    public PasswordAudit scan(FileChannel channel, long start, long end) throws IOException {
+        final PasswordAudit audit = new PasswordAudit();
+        long position = start;
+        while(position < end) {
+            final long windowEnd = Math.min(end, position + MAX_WINDOW);
+            final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowEnd - position);
+            int limit = window.limit();
+            if(windowEnd < end) {
+                // Leave the line cut off by the end of the window to the next window
+                while(limit > 0 && window.get(limit - 1) != '\n') {
+                    limit -= 1;
+                }
+                if(limit == 0) {
+                    throw new IllegalArgumentException("Line at byte " + position + " is longer than " + MAX_WINDOW + " bytes");
+                }
+            }
+            this.scan(window, 0, limit, audit);
+            position += limit;
+        }
+        return audit;
+    }
+
+    private void scan(ByteBuffer buffer, int start, int end, PasswordAudit audit) {
+        int lineStart = start;
+        while(lineStart < end) {
+            int lineEnd = lineStart;
+            while(lineEnd < end && buffer.get(lineEnd) != '\n') {
+                lineEnd += 1;
+            }
+            this.scanLine(buffer, lineStart, lineEnd, audit);
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    private void scanLine(ByteBuffer buffer, int start, int end, PasswordAudit audit) {
+        // Same trimming as Policy and Line, which also takes care of \r\n line ends
+        while(start < end && isWhitespace(buffer.get(start))) {
+            start += 1;
+        }
+        while(end > start && isWhitespace(buffer.get(end - 1))) {
+            end -= 1;
+        }
+        if(start == end) {
+            return;
+        }
+
+        int position = start;
+        int lowIndex = 0, highIndex = 0;
+        while(position < end && isDigit(buffer.get(position))) {
+            lowIndex = lowIndex * 10 + buffer.get(position++) - '0';
+        }
+        position = expect(buffer, position, end, '-', start);
+        while(position < end && isDigit(buffer.get(position))) {
+            highIndex = highIndex * 10 + buffer.get(position++) - '0';
+        }
+        position = expect(buffer, position, end, ' ', start);
+        if(position >= end) {
+            throw new IllegalArgumentException("Missing character in line at byte " + start);
+        }
+        final int characterStart = position;
+        position += sequenceLength(buffer.get(position));
+        position = expect(buffer, position, end, ':', start);
+        while(position < end && isWhitespace(buffer.get(position))) {
+            position += 1;
+        }
+
+        final int passwordStart = position;
+        final byte character = buffer.get(characterStart);
+        int matchingChars = 0, nonAscii = character & 0x80;
+        for(int i = passwordStart; i < end; ++i) {
+            final byte value = buffer.get(i);
+            nonAscii |= value & 0x80;
+            if(value == character) {
+                matchingChars += 1;
+            }
+        }
+
+        final boolean lowMatches, highMatches;
+        if(nonAscii == 0) {
+            final int passwordLength = end - passwordStart;
+            lowMatches = 1 <= lowIndex && lowIndex <= passwordLength && buffer.get(passwordStart + lowIndex - 1) == character;
+            highMatches = 1 <= highIndex && highIndex <= passwordLength && buffer.get(passwordStart + highIndex - 1) == character;
+        } else {
+            // Policies count and index characters rather than bytes, so walk the password one UTF-8 sequence at a time
+            final int characterLength = sequenceLength(character);
+            boolean low = false, high = false;
+            matchingChars = 0;
+            int index = 1;
+            for(int i = passwordStart; i < end; i += sequenceLength(buffer.get(i)), ++index) {
+                if(sequenceEquals(buffer, i, end, characterStart, characterLength)) {
+                    matchingChars += 1;
+                    low |= index == lowIndex;
+                    high |= index == highIndex;
+                }
+            }
+            lowMatches = low;
+            highMatches = high;
+        }
+
+        audit.lines += 1;
+        if(lowIndex <= matchingChars && matchingChars <= highIndex) {
+            audit.conforming1 += 1;
+        }
+        if(lowMatches ^ highMatches) {
+            audit.conforming2 += 1;
+        }
+    }
+
+    private static int expect(ByteBuffer buffer, int position, int end, char expected, int lineStart) {
+        if(position >= end || buffer.get(position) != expected) {
+            throw new IllegalArgumentException("Expected '" + expected + "' in line at byte " + lineStart);
+        }
+        return position + 1;
+    }
+
+    // Number of bytes in the UTF-8 sequence starting with the given byte; stray continuation bytes count on their own
+    private static int sequenceLength(byte lead) {
+        if((lead & 0xE0) == 0xC0) {
+            return 2;
+        } else if((lead & 0xF0) == 0xE0) {
+            return 3;
+        } else if((lead & 0xF8) == 0xF0) {
+            return 4;
+        }
+        return 1;
+    }
+
+    private static boolean sequenceEquals(ByteBuffer buffer, int position, int end, int expected, int length) {
+        if(position + length > end) {
+            return false;
+        }
+        for(int i = 0; i < length; ++i) {
+            if(buffer.get(position + i) != buffer.get(expected + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(byte value) {
+        return '0' <= value && value <= '9';
+    }
+
+    private static boolean isWhitespace(byte value) {
+        return value == ' ' || value == '\t' || value == '\r' || value == '\n';
+    }
+}
+
 public class Day2 {
     public static void main(String[] args) throws IOException {
-        final int conformingPasswords = Files.readAllLines(Paths.get("input", "day2")).stream()
-                .map(line -> new Line(line))
-                .map(line -> line.passwordConforms1())
-                .mapToInt(input -> input ? 1 : 0).sum();
-        System.out.println("Conforming passwords (part1): " + conformingPasswords);
-
-        final int conformingPasswords2 = Files.readAllLines(Paths.get("input", "day2")).stream()
-                .map(line -> new Line(line))
-                .map(line -> line.passwordConforms2())
-                .mapToInt(input -> input ? 1 : 0).sum();
-        System.out.println("Conforming passwords (part2): " + conformingPasswords2);
+        final PasswordAudit audit = new PasswordScanner()
+                .scanInParallel(Paths.get("input", "day2"), Runtime.getRuntime().availableProcessors());
+        System.out.println("Conforming passwords (part1): " + audit.conforming1);
+        System.out.println("Conforming passwords (part2): " + audit.conforming2);
     }
 }
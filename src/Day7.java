@@ -1,10 +1,13 @@
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 class BagType {
@@ -17,6 +20,10 @@ class BagType {
     public boolean equals(Object other) {
         return other instanceof BagType && this.color.equals(((BagType)other).color);
     }
+
+    public int hashCode() {
+        return this.color.hashCode();
+    }
 }
 
 class Connection {
@@ -30,62 +37,502 @@ class Connection {
     }
 }
 
+/**
+ * The edges leaving a single bag, as parallel arrays of bag ids and numbers
+ */
+class EdgeList {
+    private int[] targets = new int[4];
+    private int[] numbers = new int[4];
+    private int size = 0;
+
+    public void add(int target, int number) {
+        if(this.size == this.targets.length) {
+            this.targets = Arrays.copyOf(this.targets, this.size * 2);
+            this.numbers = Arrays.copyOf(this.numbers, this.size * 2);
+        }
+        this.targets[this.size] = target;
+        this.numbers[this.size] = number;
+        this.size += 1;
+    }
+
+    /**
+     * Removes one edge to the given target with the given number, if there is one
+     * @return True if an edge was removed
+     */
+    public boolean remove(int target, int number) {
+        for(int i = 0; i < this.size; ++i) {
+            if(this.targets[i] == target && this.numbers[i] == number) {
+                this.size -= 1;
+                this.targets[i] = this.targets[this.size];
+                this.numbers[i] = this.numbers[this.size];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int getTarget(int i) {
+        return this.targets[i];
+    }
+
+    public int getNumber(int i) {
+        return this.numbers[i];
+    }
+}
+
 class Constraints {
-    Collection<Connection> connections = new HashSet<>();
+    // Every bag color gets a dense id, which indexes the lists below
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<BagType> bagTypes = new ArrayList<>();
+
+    // For each bag, the bags it contains directly, and the bags that contain it directly
+    private final List<EdgeList> contents = new ArrayList<>();
+    private final List<EdgeList> containers = new ArrayList<>();
+
+    // Answers to earlier queries, kept up to date as connections are added and removed
+    private final Map<Integer, Collection<BagType>> transitiveContainersCache = new HashMap<>();
+    // A cached number is only valid if the numbers of all bags it contains are valid as well
+    private long[] numberContainedCache = new long[16];
+    private boolean[] numberContainedValid = new boolean[16];
+
+    // Scratch space for invalidateCaches, grown with the number of bags. A bag counts as visited by the current
+    // traversal if its stamp equals visitStamp, so the stamps never need to be cleared between traversals.
+    private int[] scratchQueue = new int[16];
+    private int[] visitStamps = new int[16];
+    private int visitStamp = 0;
 
     public void addConnection(Connection connection) {
-        this.connections.add(connection);
+        this.addConnection(connection.container, connection.number, connection.contained);
     }
 
     public void addConnection(BagType container, int number, BagType contained) {
-        this.connections.add(new Connection(container, number, contained));
+        this.addConnection(this.getOrCreateId(container.color), number, this.getOrCreateId(contained.color));
+    }
+
+    public void addConnection(int containerId, int number, int containedId) {
+        this.contents.get(containerId).add(containedId, number);
+        this.containers.get(containedId).add(containerId, number);
+        this.invalidateCaches(containerId, containedId);
+    }
+
+    public boolean removeConnection(Connection connection) {
+        return this.removeConnection(connection.container, connection.number, connection.contained);
+    }
+
+    public boolean removeConnection(BagType container, int number, BagType contained) {
+        final Integer containerId = this.ids.get(container.color), containedId = this.ids.get(contained.color);
+        return containerId != null && containedId != null && this.removeConnection(containerId, number, containedId);
+    }
+
+    /**
+     * Removes a single connection with the given bags and number, if there is one
+     * @return True if a connection was removed
+     */
+    public boolean removeConnection(int containerId, int number, int containedId) {
+        if(!this.contents.get(containerId).remove(containedId, number)) {
+            return false;
+        }
+        this.containers.get(containedId).remove(containerId, number);
+        this.invalidateCaches(containerId, containedId);
+        return true;
+    }
+
+    /**
+     * Drops the cached answers that a changed connection between the given bags may affect. These are the numbers of
+     * the container and everything containing it, and the transitive containers of the contained bag and everything
+     * inside it.
+     */
+    private void invalidateCaches(int containerId, int containedId) {
+        // Nothing is cached during bulk loads, which must not pay for a traversal per connection
+        if(!this.numberContainedValid[containerId] && this.transitiveContainersCache.isEmpty()) {
+            return;
+        }
+
+        final int[] toVisit = this.scratchQueue;
+        int head = 0, tail = 0;
+
+        // A bag whose number is already invalid cannot be below a bag whose number is valid, so stop there
+        if(this.numberContainedValid[containerId]) {
+            this.numberContainedValid[containerId] = false;
+            toVisit[tail++] = containerId;
+        }
+        while(head < tail) {
+            final EdgeList edges = this.containers.get(toVisit[head++]);
+            for(int i = 0; i < edges.size(); ++i) {
+                final int container = edges.getTarget(i);
+                if(this.numberContainedValid[container]) {
+                    this.numberContainedValid[container] = false;
+                    toVisit[tail++] = container;
+                }
+            }
+        }
+
+        if(this.transitiveContainersCache.isEmpty()) {
+            return;
+        }
+        if(++this.visitStamp == Integer.MAX_VALUE) {
+            Arrays.fill(this.visitStamps, 0);
+            this.visitStamp = 1;
+        }
+        head = 0;
+        tail = 0;
+        toVisit[tail++] = containedId;
+        this.visitStamps[containedId] = this.visitStamp;
+        while(head < tail) {
+            final int current = toVisit[head++];
+            this.transitiveContainersCache.remove(current);
+            final EdgeList edges = this.contents.get(current);
+            for(int i = 0; i < edges.size(); ++i) {
+                final int contained = edges.getTarget(i);
+                if(this.visitStamps[contained] != this.visitStamp) {
+                    this.visitStamps[contained] = this.visitStamp;
+                    toVisit[tail++] = contained;
+                }
+            }
+        }
+    }
+
+    public int getOrCreateId(String color) {
+        final Integer existingId = this.ids.get(color);
+        if(existingId != null) {
+            return existingId;
+        }
+        final int id = this.bagTypes.size();
+        this.ids.put(color, id);
+        this.bagTypes.add(new BagType(color));
+        this.contents.add(new EdgeList());
+        this.containers.add(new EdgeList());
+        if(id == this.numberContainedCache.length) {
+            this.numberContainedCache = Arrays.copyOf(this.numberContainedCache, id * 2);
+            this.numberContainedValid = Arrays.copyOf(this.numberContainedValid, id * 2);
+            this.scratchQueue = Arrays.copyOf(this.scratchQueue, id * 2);
+            this.visitStamps = Arrays.copyOf(this.visitStamps, id * 2);
+        }
+        return id;
+    }
+
+    public BagType getBagType(int id) {
+        return this.bagTypes.get(id);
     }
 
     public Collection<BagType> getContainers(BagType type) {
-        final Collection<BagType> retVal = this.connections.stream()
-                .filter(connection -> connection.contained.equals(type))
-                .map(connection -> connection.container)
-                .collect(Collectors.toSet());
+        final Collection<BagType> retVal = new HashSet<>();
+        final Integer id = this.ids.get(type.color);
+        if(id != null) {
+            final EdgeList edges = this.containers.get(id);
+            for(int i = 0; i < edges.size(); ++i) {
+                retVal.add(this.bagTypes.get(edges.getTarget(i)));
+            }
+        }
         return retVal;
     }
 
+    /**
+     * @return An unmodifiable collection of all bag types that may contain the given type, which is cached until a
+     * connection changes it
+     */
     public Collection<BagType> getTransitiveContainers(BagType containedType) {
-        final Queue<BagType> toVisit = new LinkedList<>();
-        final Collection<BagType> visited = new HashSet<>();
+        final Integer containedId = this.ids.get(containedType.color);
+        if(containedId == null) {
+            return Collections.emptySet();
+        }
+        return this.transitiveContainersCache.computeIfAbsent(containedId,
+                id -> Collections.unmodifiableCollection(this.computeTransitiveContainers(id)));
+    }
+
+    private Collection<BagType> computeTransitiveContainers(int containedId) {
+        final int[] toVisit = new int[this.bagTypes.size()];
+        final boolean[] visited = new boolean[this.bagTypes.size()];
+        int head = 0, tail = 0;
+
+        toVisit[tail++] = containedId;
+        visited[containedId] = true;
+
+        final Collection<BagType> retVal = new HashSet<>();
+        while(head < tail) {
+            final EdgeList edges = this.containers.get(toVisit[head++]);
+            for(int i = 0; i < edges.size(); ++i) {
+                final int container = edges.getTarget(i);
+                if(!visited[container]) {
+                    visited[container] = true;
+                    toVisit[tail++] = container;
+                    retVal.add(this.bagTypes.get(container));
+                }
+            }
+        }
 
-        toVisit.add(containedType);
+        return retVal;
+    }
+
+    /**
+     * @return The number of bags in a bag of the given type, counting the bag itself
+     * @throws ArithmeticException If the number does not fit into a long, see getAllNumbersContainedExact
+     */
+    public long getNumberContained(BagType containerType) {
+        final Integer containerId = this.ids.get(containerType.color);
+        return containerId == null ? 1 : this.getNumberContained(containerId);
+    }
+
+    /**
+     * Computes the number of bags in the given bag by a depth-first traversal that stops at bags with a cached number,
+     * and caches the numbers of all bags it visits
+     */
+    private long getNumberContained(int rootId) {
+        if(this.numberContainedValid[rootId]) {
+            return this.numberContainedCache[rootId];
+        }
+
+        final int[] stack = new int[this.bagTypes.size()];
+        // For each bag on the stack, the index of the next of its edges to follow
+        final int[] nextEdge = new int[this.bagTypes.size()];
+        final boolean[] onStack = new boolean[this.bagTypes.size()];
+        int depth = 0;
+        stack[depth++] = rootId;
+        onStack[rootId] = true;
+
+        while(depth > 0) {
+            final int current = stack[depth - 1];
+            final EdgeList edges = this.contents.get(current);
+            if(nextEdge[depth - 1] < edges.size()) {
+                final int contained = edges.getTarget(nextEdge[depth - 1]++);
+                if(this.numberContainedValid[contained]) {
+                    continue;
+                }
+                if(onStack[contained]) {
+                    throw new IllegalStateException("Rules contain a cycle through " + this.bagTypes.get(contained).color);
+                }
+                stack[depth] = contained;
+                nextEdge[depth] = 0;
+                onStack[contained] = true;
+                depth += 1;
+            } else {
+                long sum = 1;
+                for(int i = 0; i < edges.size(); ++i) {
+                    sum = Math.addExact(sum, Math.multiplyExact(edges.getNumber(i), this.numberContainedCache[edges.getTarget(i)]));
+                }
+                this.numberContainedCache[current] = sum;
+                this.numberContainedValid[current] = true;
+                onStack[current] = false;
+                depth -= 1;
+            }
+        }
+        return this.numberContainedCache[rootId];
+    }
+
+    /**
+     * Computes getNumberContained for all bag types in a single pass over the rules
+     * @throws ArithmeticException If one of the numbers does not fit into a long
+     */
+    public Map<BagType, Long> getAllNumbersContained() {
+        final long[] totals = this.computeNumbersContained();
+        final Map<BagType, Long> retVal = new HashMap<>();
+        for(int id = 0; id < totals.length; ++id) {
+            retVal.put(this.bagTypes.get(id), totals[id]);
+        }
+        return retVal;
+    }
+
+    // Same as getAllNumbersContained, but with arbitrary precision
+    public Map<BagType, BigInteger> getAllNumbersContainedExact() {
+        final BigInteger[] totals = this.computeNumbersContainedExact();
+        final Map<BagType, BigInteger> retVal = new HashMap<>();
+        for(int id = 0; id < totals.length; ++id) {
+            retVal.put(this.bagTypes.get(id), totals[id]);
+        }
+        return retVal;
+    }
+
+    private long[] computeNumbersContained() {
+        final long[] totals = new long[this.bagTypes.size()];
+        for(int id : this.getContainmentOrder()) {
+            final EdgeList edges = this.contents.get(id);
+            long sum = 1;
+            for(int i = 0; i < edges.size(); ++i) {
+                sum = Math.addExact(sum, Math.multiplyExact(edges.getNumber(i), totals[edges.getTarget(i)]));
+            }
+            totals[id] = sum;
+        }
+        System.arraycopy(totals, 0, this.numberContainedCache, 0, totals.length);
+        Arrays.fill(this.numberContainedValid, 0, totals.length, true);
+        return totals;
+    }
+
+    private BigInteger[] computeNumbersContainedExact() {
+        final BigInteger[] totals = new BigInteger[this.bagTypes.size()];
+        for(int id : this.getContainmentOrder()) {
+            final EdgeList edges = this.contents.get(id);
+            BigInteger sum = BigInteger.ONE;
+            for(int i = 0; i < edges.size(); ++i) {
+                sum = sum.add(BigInteger.valueOf(edges.getNumber(i)).multiply(totals[edges.getTarget(i)]));
+            }
+            totals[id] = sum;
+        }
+        return totals;
+    }
+
+    /**
+     * @return The ids of all bags, ordered such that each bag comes after all bags it contains
+     * @throws IllegalStateException If the rules require a bag to contain itself
+     */
+    private int[] getContainmentOrder() {
+        final int[] order = new int[this.bagTypes.size()];
+        // The number of edges to contained bags that are not yet in the order
+        final int[] pending = new int[this.bagTypes.size()];
+        int head = 0, tail = 0;
+        for(int id = 0; id < pending.length; ++id) {
+            pending[id] = this.contents.get(id).size();
+            if(pending[id] == 0) {
+                order[tail++] = id;
+            }
+        }
 
-        while(!toVisit.isEmpty()) {
-            final BagType currentContainedType = toVisit.remove();
-            visited.add(currentContainedType);
-            getContainers(currentContainedType).stream()
-                    .filter(container -> !visited.contains(container))
-                    .forEach(container -> toVisit.add(container));
+        while(head < tail) {
+            final EdgeList edges = this.containers.get(order[head++]);
+            for(int i = 0; i < edges.size(); ++i) {
+                final int container = edges.getTarget(i);
+                pending[container] -= 1;
+                if(pending[container] == 0) {
+                    order[tail++] = container;
+                }
+            }
         }
 
-        visited.remove(containedType);
-        return visited;
+        if(tail < order.length) {
+            throw new IllegalStateException("Rules contain a cycle through " + (order.length - tail) + " bag types");
+        }
+        return order;
+    }
+}
+
+/**
+ * Parses rules like "light red bags contain 1 bright white bag, 2 muted yellow bags." directly into the bag ids of a
+ * Constraints. Colors are looked up by their position in the line, so only colors seen for the first time allocate.
+ */
+class RuleParser {
+    private static final String CONTAIN = " bags contain ";
+    private static final String NO_OTHER_BAGS = "no other bags";
+    private static final String BAG = " bag";
+
+    private final Constraints constraints;
+
+    // Open addressing table from colors to their ids in constraints, with -1 marking empty slots
+    private int[] slots = new int[1024];
+    private int[] slotHashes = new int[1024];
+    private int size = 0;
+
+    public RuleParser(Constraints constraints) {
+        this.constraints = constraints;
+        Arrays.fill(this.slots, -1);
+    }
+
+    public void parse(Path path) throws IOException {
+        try(BufferedReader reader = Files.newBufferedReader(path)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(!line.isEmpty()) {
+                    this.parseLine(line);
+                }
+            }
+        }
+    }
+
+    public void parseLine(String line) {
+        final int containEnd = line.indexOf(CONTAIN);
+        if(containEnd < 0) {
+            throw new IllegalArgumentException("Not a rule: " + line);
+        }
+        final int container = this.intern(line, 0, containEnd);
+
+        int position = containEnd + CONTAIN.length();
+        if(line.startsWith(NO_OTHER_BAGS, position)) {
+            return;
+        }
+
+        while(true) {
+            int number = 0;
+            final int numberStart = position;
+            while(position < line.length() && Character.isDigit(line.charAt(position))) {
+                number = number * 10 + (line.charAt(position) - '0');
+                position += 1;
+            }
+            if(position == numberStart || position == line.length() || line.charAt(position) != ' ') {
+                throw new IllegalArgumentException("Expected a number at position " + numberStart + ": " + line);
+            }
+            position += 1;
+
+            final int colorEnd = line.indexOf(BAG, position);
+            if(colorEnd < 0) {
+                throw new IllegalArgumentException("Expected a bag at position " + position + ": " + line);
+            }
+            this.constraints.addConnection(container, number, this.intern(line, position, colorEnd));
+
+            position = colorEnd + BAG.length();
+            if(position < line.length() && line.charAt(position) == 's') {
+                position += 1;
+            }
+            if(line.startsWith(", ", position)) {
+                position += 2;
+            } else {
+                return;
+            }
+        }
     }
 
-    private Stream<Connection> getOutgoingConnections(BagType container) {
-        return this.connections.stream()
-                .filter(connection -> connection.container.equals(container));
+    private int intern(String line, int start, int end) {
+        int hash = 0;
+        for(int i = start; i < end; ++i) {
+            hash = 31 * hash + line.charAt(i);
+        }
+
+        final int mask = this.slots.length - 1;
+        int slot = hash & mask;
+        while(this.slots[slot] != -1) {
+            if(this.slotHashes[slot] == hash) {
+                final String color = this.constraints.getBagType(this.slots[slot]).color;
+                if(color.length() == end - start && line.regionMatches(start, color, 0, color.length())) {
+                    return this.slots[slot];
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        final int id = this.constraints.getOrCreateId(line.substring(start, end));
+        this.slots[slot] = id;
+        this.slotHashes[slot] = hash;
+        this.size += 1;
+        if(this.size * 2 > this.slots.length) {
+            this.grow();
+        }
+        return id;
     }
 
-    public int getNumberContained(BagType containerType) {
-        return this.getOutgoingConnections(containerType)
-                .mapToInt(connection -> connection.number * getNumberContained(connection.contained))
-                .sum() + 1;
+    private void grow() {
+        final int[] oldSlots = this.slots, oldHashes = this.slotHashes;
+        this.slots = new int[oldSlots.length * 2];
+        this.slotHashes = new int[oldSlots.length * 2];
+        Arrays.fill(this.slots, -1);
+        final int mask = this.slots.length - 1;
+        for(int i = 0; i < oldSlots.length; ++i) {
+            if(oldSlots[i] != -1) {
+                int slot = oldHashes[i] & mask;
+                while(this.slots[slot] != -1) {
+                    slot = (slot + 1) & mask;
+                }
+                this.slots[slot] = oldSlots[i];
+                this.slotHashes[slot] = oldHashes[i];
+            }
+        }
     }
 }
 
 public class Day7 {
     public static void main(String[] args) throws IOException {
         final Constraints constraints = new Constraints();
-
-        Files.readAllLines(Paths.get("input", "day7")).stream()
-                .flatMap(Day7::parseLine)
-                .forEach(constraints::addConnection);
+        new RuleParser(constraints).parse(Paths.get("input", "day7"));
 
         System.out.println(constraints.getTransitiveContainers(new BagType("shiny gold")).size());
         System.out.println(constraints.getNumberContained(new BagType("shiny gold")) - 1);
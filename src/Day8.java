@@ -2,19 +2,162 @@ import javax.crypto.Cipher;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A program compiled to parallel arrays of opcodes and arguments, so that executing it needs no virtual calls and
+ * fetching an instruction is an array access regardless of the list the program was given as
+ */
+class CompiledProgram {
+    static final byte NOP = 0;
+    static final byte JMP = 1;
+    static final byte ACC = 2;
+
+    private final byte[] opcodes;
+    private final int[] arguments;
+
+    public CompiledProgram(List<Instruction> program) {
+        this.opcodes = new byte[program.size()];
+        this.arguments = new int[program.size()];
+        int i = 0;
+        for(Instruction instruction : program) {
+            this.opcodes[i] = instruction.getOpcode();
+            this.arguments[i] = instruction.getArgument();
+            i += 1;
+        }
+    }
+
+    public static String getMnemonic(byte opcode) {
+        switch (opcode) {
+            case NOP:
+                return "nop";
+            case JMP:
+                return "jmp";
+            case ACC:
+                return "acc";
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    public int size() {
+        return this.opcodes.length;
+    }
+
+    public byte getOpcode(int location) {
+        return this.opcodes[location];
+    }
+
+    public int getArgument(int location) {
+        return this.arguments[location];
+    }
+}
+
+/**
+ * Counts collected by a profiling VirtualMachine, accumulated over all its executions
+ */
+class ExecutionProfile {
+    private final CompiledProgram program;
+    final long[] opcodeCounts = new long[3];
+    final long[] locationHits;
+    long cycles = 0;
+    long wallTimeNanos = 0;
+
+    public ExecutionProfile(CompiledProgram program) {
+        this.program = program;
+        this.locationHits = new long[program.size()];
+    }
+
+    public long getCycles() {
+        return this.cycles;
+    }
+
+    public long getWallTimeNanos() {
+        return this.wallTimeNanos;
+    }
+
+    public long getOpcodeCount(byte opcode) {
+        return this.opcodeCounts[opcode];
+    }
+
+    public long getLocationHits(int location) {
+        return this.locationHits[location];
+    }
+
+    /**
+     * @param hottestLocations How many of the most executed locations to list
+     */
+    public String getSummary(int hottestLocations) {
+        final StringBuilder summary = new StringBuilder();
+        summary.append("Cycles: ").append(this.cycles)
+                .append(", wall time: ").append(this.wallTimeNanos / 1_000_000.0).append(" ms\n");
+        for(byte opcode = 0; opcode < this.opcodeCounts.length; ++opcode) {
+            summary.append(CompiledProgram.getMnemonic(opcode)).append(": ").append(this.opcodeCounts[opcode]).append("\n");
+        }
+        IntStream.range(0, this.locationHits.length)
+                .filter(location -> this.locationHits[location] > 0)
+                .boxed()
+                .sorted((a, b) -> Long.compare(this.locationHits[b], this.locationHits[a]))
+                .limit(hottestLocations)
+                .forEach(location -> summary.append("Location ").append(location).append(" (")
+                        .append(CompiledProgram.getMnemonic(this.program.getOpcode(location))).append(" ")
+                        .append(this.program.getArgument(location)).append("): ")
+                        .append(this.locationHits[location]).append(" hits\n"));
+        return summary.toString();
+    }
+}
 
 class VirtualMachine {
     private int programCounter = 0;
     private int accumulator = 0;
-    private final List<Instruction> program;
+    private final CompiledProgram program;
+    // Null unless the program is patched, with a bit set for every patched location
+    private final ProgramPatch patch;
+    private final long[] patched;
+    // Null unless profiling is enabled
+    private ExecutionProfile profile;
+    // Kept after an execution used up its budget, so that the next one continues its loop detection
+    private long[] visited;
 
     public VirtualMachine(List<Instruction> program) {
+        this(new CompiledProgram(program));
+    }
+
+    public VirtualMachine(CompiledProgram program) {
+        this(program, null);
+    }
+
+    /**
+     * Executes the program with the instructions of the patch in place of its own, without changing the program
+     */
+    public VirtualMachine(CompiledProgram program, ProgramPatch patch) {
         this.program = program;
+        this.patch = patch;
+        if(patch == null || patch.size() == 0) {
+            this.patched = null;
+            return;
+        }
+        this.patched = new long[(program.size() + 63) >>> 6];
+        for(int i = 0; i < patch.size(); ++i) {
+            final int location = patch.getLocation(i);
+            if(location < 0 || location >= program.size()) {
+                throw new IllegalArgumentException("Patch location " + location + " is outside of the program");
+            }
+            this.patched[location >>> 6] |= 1L << location;
+        }
     }
 
     public int getProgramCounter() {
@@ -30,19 +173,192 @@ class VirtualMachine {
     }
 
     public void executeCycle() {
-        this.program.get(this.programCounter).execute(this);
+        final int argument = this.getArgument(this.programCounter);
+        switch (this.getOpcode(this.programCounter)) {
+            case CompiledProgram.NOP:
+                this.programCounter += 1;
+                break;
+            case CompiledProgram.JMP:
+                this.programCounter += argument;
+                break;
+            case CompiledProgram.ACC:
+                this.accumulator += argument;
+                this.programCounter += 1;
+                break;
+            default:
+                throw new IllegalStateException();
+        }
     }
 
     public int getAccumulator() {
         return this.accumulator;
     }
 
+    private boolean isPatched(int location) {
+        return this.patched != null && (this.patched[location >>> 6] & 1L << location) != 0;
+    }
+
+    private byte getOpcode(int location) {
+        return this.isPatched(location) ? this.patch.getOpcode(this.patch.indexOf(location)) : this.program.getOpcode(location);
+    }
+
+    private int getArgument(int location) {
+        return this.isPatched(location) ? this.patch.getArgument(this.patch.indexOf(location)) : this.program.getArgument(location);
+    }
+
+    /**
+     * Makes all further executions record their cycles in the returned profile. This runs a separate interpreter loop,
+     * so that executions without profiling do not pay for it.
+     */
+    public ExecutionProfile enableProfiling() {
+        if(this.profile == null) {
+            this.profile = new ExecutionProfile(this.program);
+        }
+        return this.profile;
+    }
+
     public void executeUntilTermination() {
-        final Collection<Integer> visitedLocations = new HashSet<>();
-        do {
-            visitedLocations.add(this.getProgramCounter());
-            this.executeCycle();
-        } while(!(visitedLocations.contains(this.getProgramCounter()) || this.getProgramCounter() >= this.program.size()));
+        this.execute(Long.MAX_VALUE);
+    }
+
+    /**
+     * Executes cycles until the program terminates, leaves the program, is about to execute a location a second time,
+     * or has used up the given number of cycles. After the latter, the next execution counts the locations visited so
+     * far as well, so that a program run in slices of cycles still stops at its first repeated location.
+     */
+    public ExecutionResult execute(long cycleBudget) {
+        if(this.profile != null) {
+            return this.executeProfiled(cycleBudget);
+        }
+        final int size = this.program.size();
+        final long[] visited = this.visited != null ? this.visited : new long[(size + 63) >>> 6];
+        int programCounter = this.programCounter, accumulator = this.accumulator;
+        long cycles = 0;
+        final ExecutionOutcome outcome;
+        while(true) {
+            if(programCounter == size) {
+                outcome = ExecutionOutcome.TERMINATED;
+                break;
+            }
+            if(programCounter < 0 || programCounter > size) {
+                outcome = ExecutionOutcome.OUT_OF_BOUNDS;
+                break;
+            }
+            final long bit = 1L << programCounter;
+            if((visited[programCounter >>> 6] & bit) != 0) {
+                outcome = ExecutionOutcome.LOOPED;
+                break;
+            }
+            if(cycles == cycleBudget) {
+                outcome = ExecutionOutcome.BUDGET_EXHAUSTED;
+                break;
+            }
+            visited[programCounter >>> 6] |= bit;
+            cycles += 1;
+
+            final int argument = this.getArgument(programCounter);
+            switch (this.getOpcode(programCounter)) {
+                case CompiledProgram.NOP:
+                    programCounter += 1;
+                    break;
+                case CompiledProgram.JMP:
+                    programCounter += argument;
+                    break;
+                case CompiledProgram.ACC:
+                    accumulator += argument;
+                    programCounter += 1;
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+        this.programCounter = programCounter;
+        this.accumulator = accumulator;
+        this.visited = outcome == ExecutionOutcome.BUDGET_EXHAUSTED ? visited : null;
+        return new ExecutionResult(outcome, programCounter, accumulator, cycles);
+    }
+
+    // Same as execute, but also records every cycle in the profile
+    private ExecutionResult executeProfiled(long cycleBudget) {
+        final long start = System.nanoTime();
+        final long[] opcodeCounts = this.profile.opcodeCounts;
+        final long[] locationHits = this.profile.locationHits;
+        final int size = this.program.size();
+        final long[] visited = this.visited != null ? this.visited : new long[(size + 63) >>> 6];
+        int programCounter = this.programCounter, accumulator = this.accumulator;
+        long cycles = 0;
+        final ExecutionOutcome outcome;
+        while(true) {
+            if(programCounter == size) {
+                outcome = ExecutionOutcome.TERMINATED;
+                break;
+            }
+            if(programCounter < 0 || programCounter > size) {
+                outcome = ExecutionOutcome.OUT_OF_BOUNDS;
+                break;
+            }
+            final long bit = 1L << programCounter;
+            if((visited[programCounter >>> 6] & bit) != 0) {
+                outcome = ExecutionOutcome.LOOPED;
+                break;
+            }
+            if(cycles == cycleBudget) {
+                outcome = ExecutionOutcome.BUDGET_EXHAUSTED;
+                break;
+            }
+            visited[programCounter >>> 6] |= bit;
+            cycles += 1;
+
+            final byte opcode = this.getOpcode(programCounter);
+            final int argument = this.getArgument(programCounter);
+            opcodeCounts[opcode] += 1;
+            locationHits[programCounter] += 1;
+            switch (opcode) {
+                case CompiledProgram.NOP:
+                    programCounter += 1;
+                    break;
+                case CompiledProgram.JMP:
+                    programCounter += argument;
+                    break;
+                case CompiledProgram.ACC:
+                    accumulator += argument;
+                    programCounter += 1;
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+        this.programCounter = programCounter;
+        this.accumulator = accumulator;
+        this.visited = outcome == ExecutionOutcome.BUDGET_EXHAUSTED ? visited : null;
+        this.profile.cycles += cycles;
+        this.profile.wallTimeNanos += System.nanoTime() - start;
+        return new ExecutionResult(outcome, programCounter, accumulator, cycles);
+    }
+}
+
+enum ExecutionOutcome {
+    // The program counter reached the location right after the last instruction
+    TERMINATED,
+    // The next instruction has been executed before
+    LOOPED,
+    // The program counter left the program other than by terminating
+    OUT_OF_BOUNDS,
+    // The cycle budget ran out first
+    BUDGET_EXHAUSTED
+}
+
+class ExecutionResult {
+    final ExecutionOutcome outcome;
+    final int programCounter;
+    final int accumulator;
+    final long cycles;
+
+    public ExecutionResult(ExecutionOutcome outcome, int programCounter, int accumulator, long cycles) {
+        this.outcome = outcome;
+        this.programCounter = programCounter;
+        this.accumulator = accumulator;
+        this.cycles = cycles;
     }
 }
 
@@ -70,6 +386,9 @@ abstract class Instruction {
 
     public abstract void execute(VirtualMachine machine);
 
+    // The opcode of this instruction in a CompiledProgram
+    public abstract byte getOpcode();
+
     public int getArgument() {
         return(this.argument);
     }
@@ -84,6 +403,11 @@ class JumpInstruction extends Instruction {
     public void execute(VirtualMachine machine) {
         machine.incrementProgramCounter(this.getArgument());
     }
+
+    @Override
+    public byte getOpcode() {
+        return CompiledProgram.JMP;
+    }
 }
 
 class AccumulateInstruction extends Instruction {
@@ -96,6 +420,11 @@ class AccumulateInstruction extends Instruction {
         machine.incrementAccumulator(this.getArgument());
         machine.incrementProgramCounter(1);
     }
+
+    @Override
+    public byte getOpcode() {
+        return CompiledProgram.ACC;
+    }
 }
 
 class NoOpInstruction extends Instruction {
@@ -107,6 +436,275 @@ class NoOpInstruction extends Instruction {
     public void execute(VirtualMachine machine) {
         machine.incrementProgramCounter(1);
     }
+
+    @Override
+    public byte getOpcode() {
+        return CompiledProgram.NOP;
+    }
+}
+
+/**
+ * Replacements for some instructions of a CompiledProgram, which leave the shared program itself untouched
+ */
+class ProgramPatch {
+    // Sorted by location
+    private final int[] locations;
+    private final byte[] opcodes;
+    private final int[] arguments;
+
+    public ProgramPatch(Map<Integer, Instruction> replacements) {
+        final Map<Integer, Instruction> sortedReplacements = new TreeMap<>(replacements);
+        this.locations = new int[sortedReplacements.size()];
+        this.opcodes = new byte[sortedReplacements.size()];
+        this.arguments = new int[sortedReplacements.size()];
+        int i = 0;
+        for(Map.Entry<Integer, Instruction> replacement : sortedReplacements.entrySet()) {
+            this.locations[i] = replacement.getKey();
+            this.opcodes[i] = replacement.getValue().getOpcode();
+            this.arguments[i] = replacement.getValue().getArgument();
+            i += 1;
+        }
+    }
+
+    // Swaps the nop or jmp at the given location for the other one
+    public static ProgramPatch flip(CompiledProgram program, int location) {
+        final int argument = program.getArgument(location);
+        switch (program.getOpcode(location)) {
+            case CompiledProgram.NOP:
+                return new ProgramPatch(Collections.singletonMap(location, new JumpInstruction(argument)));
+            case CompiledProgram.JMP:
+                return new ProgramPatch(Collections.singletonMap(location, new NoOpInstruction(argument)));
+            default:
+                throw new IllegalArgumentException("Cannot flip the instruction at " + location);
+        }
+    }
+
+    public int size() {
+        return this.locations.length;
+    }
+
+    public int getLocation(int i) {
+        return this.locations[i];
+    }
+
+    // The index of the replacement for the given location, which must be one of the patched locations
+    public int indexOf(int location) {
+        return Arrays.binarySearch(this.locations, location);
+    }
+
+    public byte getOpcode(int i) {
+        return this.opcodes[i];
+    }
+
+    public int getArgument(int i) {
+        return this.arguments[i];
+    }
+}
+
+class VariantResult {
+    final ProgramPatch patch;
+    final ExecutionResult result;
+
+    public VariantResult(ProgramPatch patch, ExecutionResult result) {
+        this.patch = patch;
+        this.result = result;
+    }
+}
+
+/**
+ * Runs many patched variants of one program concurrently until each terminates, leaves the program, or loops. Each
+ * variant runs on its own VirtualMachine, which shares the arrays of the program and keeps its own counters and bitmap
+ * of visited locations.
+ */
+class BatchExecutor {
+    // How many cycles a variant runs between checks whether the batch has been cancelled
+    private static final int CANCELLATION_INTERVAL = 1 << 12;
+
+    private final CompiledProgram program;
+    private final int parallelism;
+
+    public BatchExecutor(CompiledProgram program, int parallelism) {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        this.program = program;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return The results of all variants, in the order of the given patches
+     */
+    public List<VariantResult> executeAll(List<ProgramPatch> patches) {
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        return this.invokeAll(patches.stream()
+                .map(patch -> (Callable<VariantResult>) () -> this.execute(patch, cancelled))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Runs variants until one of them terminates, and cancels all others once it has
+     * @return The result of a terminating variant, or null if none terminates
+     */
+    public VariantResult findTerminating(List<ProgramPatch> patches) {
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        final AtomicReference<VariantResult> terminating = new AtomicReference<>();
+        this.invokeAll(patches.stream()
+                .map(patch -> (Callable<VariantResult>) () -> {
+                    final VariantResult result = this.execute(patch, cancelled);
+                    if(result != null && result.result.outcome == ExecutionOutcome.TERMINATED && terminating.compareAndSet(null, result)) {
+                        cancelled.set(true);
+                    }
+                    return result;
+                })
+                .collect(Collectors.toList()));
+        return terminating.get();
+    }
+
+    private List<VariantResult> invokeAll(List<Callable<VariantResult>> tasks) {
+        final ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+        try {
+            final List<VariantResult> results = new ArrayList<>(tasks.size());
+            for(Future<VariantResult> result : pool.invokeAll(tasks)) {
+                results.add(result.get());
+            }
+            return results;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return The result of the variant, or null if the batch was cancelled before it finished
+     */
+    private VariantResult execute(ProgramPatch patch, AtomicBoolean cancelled) {
+        // Variants that only start after the batch was cancelled are skipped before allocating anything
+        if(cancelled.get()) {
+            return null;
+        }
+        final VirtualMachine machine = new VirtualMachine(this.program, patch);
+        ExecutionResult result;
+        do {
+            result = machine.execute(CANCELLATION_INTERVAL);
+        } while(result.outcome == ExecutionOutcome.BUDGET_EXHAUSTED && !cancelled.get());
+        return result.outcome == ExecutionOutcome.BUDGET_EXHAUSTED ? null : new VariantResult(patch, result);
+    }
+}
+
+class RepairResult {
+    // -1 if the program terminates without flipping anything
+    final int flippedLocation;
+    final int accumulator;
+
+    public RepairResult(int flippedLocation, int accumulator) {
+        this.flippedLocation = flippedLocation;
+        this.accumulator = accumulator;
+    }
+}
+
+/**
+ * Finds the single nop or jmp that has to be flipped for a program to terminate, in time linear in its length. It
+ * first determines which locations reach the end of the program unchanged, by searching backwards from the end. The
+ * fix is then the first flippable instruction on the original path whose flipped successor is one of them. This only
+ * holds if the original path loops or leaves the program, since otherwise flipping an instruction on it may just as
+ * well cause a loop.
+ */
+class ProgramRepair {
+    private final CompiledProgram program;
+
+    public ProgramRepair(CompiledProgram program) {
+        this.program = program;
+    }
+
+    /**
+     * @return The location to flip and the accumulator at termination, or null if no single flip works. If the
+     * unchanged program already terminates, the flipped location is -1.
+     */
+    public RepairResult findRepair() {
+        final int size = this.program.size();
+        final boolean[] terminates = this.findTerminatingLocations();
+        if(terminates[0]) {
+            return new RepairResult(-1, this.finishAccumulating(0, 0));
+        }
+
+        final boolean[] visited = new boolean[size];
+        int programCounter = 0, accumulator = 0;
+        while(0 <= programCounter && programCounter < size && !visited[programCounter]) {
+            visited[programCounter] = true;
+            final byte opcode = this.program.getOpcode(programCounter);
+            if(opcode != CompiledProgram.ACC) {
+                final int flippedSuccessor = this.successor(programCounter, opcode == CompiledProgram.NOP ? CompiledProgram.JMP : CompiledProgram.NOP);
+                if(0 <= flippedSuccessor && flippedSuccessor <= size && terminates[flippedSuccessor]) {
+                    return new RepairResult(programCounter, this.finishAccumulating(flippedSuccessor, accumulator));
+                }
+            } else {
+                accumulator += this.program.getArgument(programCounter);
+            }
+            programCounter = this.successor(programCounter, opcode);
+        }
+        return null;
+    }
+
+    /**
+     * @return For every location from 0 up to and including the size of the program, whether the unchanged program
+     * runs from there to its end
+     */
+    private boolean[] findTerminatingLocations() {
+        final int size = this.program.size();
+
+        // The locations that continue at each location, in CSR form
+        final int[] starts = new int[size + 2];
+        for(int location = 0; location < size; ++location) {
+            final int successor = this.successor(location, this.program.getOpcode(location));
+            if(0 <= successor && successor <= size) {
+                starts[successor + 1] += 1;
+            }
+        }
+        for(int location = 0; location <= size; ++location) {
+            starts[location + 1] += starts[location];
+        }
+        final int[] predecessors = new int[starts[size + 1]];
+        final int[] fill = Arrays.copyOf(starts, size + 1);
+        for(int location = 0; location < size; ++location) {
+            final int successor = this.successor(location, this.program.getOpcode(location));
+            if(0 <= successor && successor <= size) {
+                predecessors[fill[successor]++] = location;
+            }
+        }
+
+        final boolean[] terminates = new boolean[size + 1];
+        final int[] toVisit = new int[size + 1];
+        int head = 0, tail = 0;
+        terminates[size] = true;
+        toVisit[tail++] = size;
+        while(head < tail) {
+            final int location = toVisit[head++];
+            for(int i = starts[location]; i < starts[location + 1]; ++i) {
+                if(!terminates[predecessors[i]]) {
+                    terminates[predecessors[i]] = true;
+                    toVisit[tail++] = predecessors[i];
+                }
+            }
+        }
+        return terminates;
+    }
+
+    // Runs the unchanged program from a location known to terminate
+    private int finishAccumulating(int programCounter, int accumulator) {
+        while(programCounter != this.program.size()) {
+            final byte opcode = this.program.getOpcode(programCounter);
+            if(opcode == CompiledProgram.ACC) {
+                accumulator += this.program.getArgument(programCounter);
+            }
+            programCounter = this.successor(programCounter, opcode);
+        }
+        return accumulator;
+    }
+
+    private int successor(int location, byte opcode) {
+        return opcode == CompiledProgram.JMP ? location + this.program.getArgument(location) : location + 1;
+    }
 }
 
 public class Day8 {
@@ -119,22 +717,9 @@ public class Day8 {
         machine.executeUntilTermination();
         System.out.println(machine.getAccumulator());
 
-        for (int i = 0; i < originalProgram.size(); ++i) {
-            final Instruction originalInstruction = originalProgram.get(i);
-            final List<Instruction> manipulatedProgram = new LinkedList<>(originalProgram);
-            if (originalInstruction instanceof AccumulateInstruction) {
-                continue;
-            } else if (originalInstruction instanceof NoOpInstruction) {
-                manipulatedProgram.set(i, new JumpInstruction(originalInstruction.getArgument()));
-            } else {
-                manipulatedProgram.set(i, new NoOpInstruction(originalInstruction.getArgument()));
-            }
-
-            final VirtualMachine manipulatedMachine = new VirtualMachine(manipulatedProgram);
-            manipulatedMachine.executeUntilTermination();
-            if (manipulatedMachine.getProgramCounter() == originalProgram.size()) {
-                System.out.println(manipulatedMachine.getAccumulator());
-            }
+        final RepairResult repair = new ProgramRepair(new CompiledProgram(originalProgram)).findRepair();
+        if (repair != null) {
+            System.out.println(repair.accumulator);
         }
     }
 }
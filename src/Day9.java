@@ -1,68 +1,145 @@
 import java.io.IOException;
+import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
-class LongColumn {
-    private List<Long> entries;
-
-    public LongColumn() {
-        this(new LinkedList<>());
-    }
-
-    public LongColumn(List<Long> entries) {
-        this.entries = entries;
-    }
-
-    public void removeFirstEntry() {
-        this.entries.remove(0);
+/**
+ * A multiset of longs in an open addressing table with linear probing
+ */
+class LongMultiset {
+    private long[] keys;
+    // Zero marks an empty slot
+    private int[] counts;
+    private int size = 0;
+
+    public LongMultiset(int expectedSize) {
+        final int capacity = Integer.highestOneBit(Math.max(expectedSize, 2) * 2 - 1) << 1;
+        this.keys = new long[capacity];
+        this.counts = new int[capacity];
     }
 
-    public void appendEntry(long nextEntry) {
-        this.entries.add(nextEntry);
+    public int count(long value) {
+        final int mask = this.keys.length - 1;
+        for(int slot = hash(value) & mask; this.counts[slot] != 0; slot = (slot + 1) & mask) {
+            if(this.keys[slot] == value) {
+                return this.counts[slot];
+            }
+        }
+        return 0;
     }
 
-    public boolean contains(long iValue) {
-        return this.entries.contains(iValue);
+    public void add(long value) {
+        final int mask = this.keys.length - 1;
+        int slot = hash(value) & mask;
+        while(this.counts[slot] != 0) {
+            if(this.keys[slot] == value) {
+                this.counts[slot] += 1;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        this.keys[slot] = value;
+        this.counts[slot] = 1;
+        this.size += 1;
+        if(this.size * 2 > this.keys.length) {
+            this.rehash(this.keys.length * 2);
+        }
     }
-}
 
-class LongMatrix {
-    private List<LongColumn> columns = new LinkedList<>();
+    public void remove(long value) {
+        final int mask = this.keys.length - 1;
+        int slot = hash(value) & mask;
+        while(this.counts[slot] != 0 && this.keys[slot] != value) {
+            slot = (slot + 1) & mask;
+        }
+        if(this.counts[slot] == 0) {
+            throw new IllegalArgumentException("Not contained: " + value);
+        }
+        if(--this.counts[slot] > 0) {
+            return;
+        }
 
-    public void removeFirstColumn() {
-        this.columns.remove(0);
+        // Shift later entries of the probe sequence back, so that lookups never stop at the freed slot too early
+        this.size -= 1;
+        int free = slot;
+        for(int next = (free + 1) & mask; this.counts[next] != 0; next = (next + 1) & mask) {
+            final int home = hash(this.keys[next]) & mask;
+            if(((next - home) & mask) >= ((next - free) & mask)) {
+                this.keys[free] = this.keys[next];
+                this.counts[free] = this.counts[next];
+                this.counts[next] = 0;
+                free = next;
+            }
+        }
     }
 
-    public void appendColumn(List<Long> entries) {
-        this.appendColumn(new LongColumn(entries));
+    private void rehash(int capacity) {
+        final long[] oldKeys = this.keys;
+        final int[] oldCounts = this.counts;
+        this.keys = new long[capacity];
+        this.counts = new int[capacity];
+        final int mask = capacity - 1;
+        for(int i = 0; i < oldKeys.length; ++i) {
+            if(oldCounts[i] != 0) {
+                int slot = hash(oldKeys[i]) & mask;
+                while(this.counts[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                this.keys[slot] = oldKeys[i];
+                this.counts[slot] = oldCounts[i];
+            }
+        }
     }
 
-    public void appendColumn(LongColumn column) {
-        this.columns.add(column);
+    private static int hash(long value) {
+        final long mixed = value * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
     }
+}
 
-    public void removeFirstRow() {
-        for(LongColumn column : this.columns) {
-            column.removeFirstEntry();
+/**
+ * Checks numbers one by one against the XMAS rule, under which each number after the preamble has to be the sum of
+ * two of the windowSize numbers directly before it. Each check takes O(windowSize) time and allocates nothing.
+ */
+class XmasValidator {
+    // The last windowSize numbers, with the oldest at position next once the window is full
+    private final long[] window;
+    private final LongMultiset windowValues;
+    private int next = 0;
+    private long accepted = 0;
+
+    public XmasValidator(int windowSize) {
+        if(windowSize < 2) {
+            throw new IllegalArgumentException("Window needs at least two numbers: " + windowSize);
         }
+        this.window = new long[windowSize];
+        this.windowValues = new LongMultiset(windowSize);
     }
 
-    public void appendRow(List<Long> entries) {
-        if(entries.size() != this.columns.size()) {
-            throw new IllegalArgumentException();
-        }
-        for(int i = 0; i < entries.size(); ++i) {
-            this.columns.get(i).appendEntry(entries.get(i));
+    /**
+     * Checks the next number and then moves the window past it
+     * @return False if the number is not the sum of two numbers in the window, true otherwise or during the preamble
+     */
+    public boolean accept(long value) {
+        final boolean valid = this.accepted < this.window.length || this.isSumOfPair(value);
+        if(this.accepted >= this.window.length) {
+            this.windowValues.remove(this.window[this.next]);
         }
+        this.window[this.next] = value;
+        this.windowValues.add(value);
+        this.next = (this.next + 1) % this.window.length;
+        this.accepted += 1;
+        return valid;
     }
 
-    public boolean contains(long iValue) {
-        for(LongColumn column : this.columns) {
-            if(column.contains(iValue)) {
+    private boolean isSumOfPair(long value) {
+        for(long summand : this.window) {
+            final long otherSummand = value - summand;
+            // The two summands have to be different entries of the window, even if their values are equal
+            if(this.windowValues.count(otherSummand) > (otherSummand == summand ? 1 : 0)) {
                 return true;
             }
         }
@@ -70,41 +147,147 @@ class LongMatrix {
     }
 }
 
-class Sublist {
-    List<Long> mainList;
-    int low = 0, high = 1;
-    long sublistSum;
+interface InvalidNumberListener {
+    void onInvalidNumber(long position, long value);
+}
+
+/**
+ * Validates whitespace separated numbers as they are read, so that neither the input nor any of its lines has to be
+ * held in memory. Memory use only depends on the window size.
+ */
+class XmasStreamValidator {
+    private final int windowSize;
 
-    public Sublist(List<Long> mainList) {
-        this.mainList = mainList;
-        this.sublistSum = mainList.get(0) + mainList.get(1);
+    public XmasStreamValidator(int windowSize) {
+        this.windowSize = windowSize;
     }
 
-    public void append() {
-        this.high += 1;
-        this.sublistSum += mainList.get(this.high);
+    /**
+     * Reads numbers until the end of the reader and reports each invalid one as soon as it is read
+     * @return The number of numbers read
+     */
+    public long validate(Reader reader, InvalidNumberListener listener) throws IOException {
+        final XmasValidator validator = new XmasValidator(this.windowSize);
+        final char[] buffer = new char[8192];
+        long position = 0, value = 0;
+        boolean inNumber = false, negative = false;
+        int read;
+        while((read = reader.read(buffer)) != -1) {
+            for(int i = 0; i < read; ++i) {
+                final char character = buffer[i];
+                if('0' <= character && character <= '9') {
+                    value = Math.addExact(Math.multiplyExact(value, 10), character - '0');
+                    inNumber = true;
+                } else if(character == '-' && !inNumber && !negative) {
+                    negative = true;
+                } else if(Character.isWhitespace(character) && inNumber) {
+                    this.check(validator, listener, position++, negative ? -value : value);
+                    value = 0;
+                    inNumber = false;
+                    negative = false;
+                } else if(!Character.isWhitespace(character) || negative) {
+                    throw new IllegalArgumentException("Unexpected character '" + character + "' after " + position + " numbers");
+                }
+            }
+        }
+        if(inNumber) {
+            this.check(validator, listener, position++, negative ? -value : value);
+        } else if(negative) {
+            throw new IllegalArgumentException("Missing number after '-' at the end of the input");
+        }
+        return position;
     }
 
-    public void prepend() {
-        this.low -= 1;
-        this.sublistSum += mainList.get(this.low);
+    private void check(XmasValidator validator, InvalidNumberListener listener, long position, long value) {
+        if(!validator.accept(value)) {
+            listener.onInvalidNumber(position, value);
+        }
     }
+}
+
+class ContiguousRange {
+    // Both inclusive
+    final int low, high;
+    final long min, max;
 
-    public void popFront() {
-        this.sublistSum -= mainList.get(this.low);
-        this.low += 1;
+    public ContiguousRange(int low, int high, long min, long max) {
+        this.low = low;
+        this.high = high;
+        this.min = min;
+        this.max = max;
     }
+}
 
-    public void popRight() {
-        this.sublistSum -= mainList.get(this.high);
-        this.high += 1;
+/**
+ * Finds ranges of at least two consecutive numbers with a given sum. Since all numbers are non-negative, the sum of a
+ * range only grows with its end, so a single pass with two pointers suffices. The minimum and maximum of the current
+ * range are kept in monotonic deques along the way.
+ */
+class ContiguousRangeFinder {
+    private final long[] values;
+    // prefixSums[i] is the sum of the first i values
+    private final long[] prefixSums;
+
+    // Indices of the current range whose values are increasing, resp. decreasing, with the extremum at the head
+    private final int[] minDeque, maxDeque;
+
+    public ContiguousRangeFinder(long[] values) {
+        this.values = values;
+        this.prefixSums = new long[values.length + 1];
+        for(int i = 0; i < values.length; ++i) {
+            if(values[i] < 0) {
+                throw new IllegalArgumentException("Negative value " + values[i] + " at position " + i);
+            }
+            this.prefixSums[i + 1] = Math.addExact(this.prefixSums[i], values[i]);
+        }
+        this.minDeque = new int[values.length];
+        this.maxDeque = new int[values.length];
     }
 
-    public int getLow() { return this.low; }
-    public int getHigh() { return this.high; }
+    /**
+     * @return The first range of at least two numbers that sums to the target, or null if there is none
+     */
+    public ContiguousRange find(long target) {
+        int low = 0;
+        int minHead = 0, minTail = 0, maxHead = 0, maxTail = 0;
+        for(int high = 0; high < this.values.length; ++high) {
+            final long value = this.values[high];
+            while(minTail > minHead && this.values[this.minDeque[minTail - 1]] >= value) {
+                minTail -= 1;
+            }
+            this.minDeque[minTail++] = high;
+            while(maxTail > maxHead && this.values[this.maxDeque[maxTail - 1]] <= value) {
+                maxTail -= 1;
+            }
+            this.maxDeque[maxTail++] = high;
+
+            while(low < high && this.prefixSums[high + 1] - this.prefixSums[low] > target) {
+                low += 1;
+            }
+            while(this.minDeque[minHead] < low) {
+                minHead += 1;
+            }
+            while(this.maxDeque[maxHead] < low) {
+                maxHead += 1;
+            }
+
+            if(low < high && this.prefixSums[high + 1] - this.prefixSums[low] == target) {
+                return new ContiguousRange(low, high, this.values[this.minDeque[minHead]], this.values[this.maxDeque[maxHead]]);
+            }
+        }
+        return null;
+    }
 
-    public long getSublistSum() {
-        return this.sublistSum;
+    /**
+     * Answers many targets against the same numbers, sharing the prefix sums and deques between them
+     * @return For each target, the result of find
+     */
+    public ContiguousRange[] findAll(long[] targets) {
+        final ContiguousRange[] ranges = new ContiguousRange[targets.length];
+        for(int i = 0; i < targets.length; ++i) {
+            ranges[i] = this.find(targets[i]);
+        }
+        return ranges;
     }
 }
 
@@ -130,68 +313,30 @@ public class Day9 {
     }
 
     public void printCorruptedIndices() {
-        final LongMatrix matrix = new LongMatrix();
-        for (int i = 1; i <= windowSize; ++i) {
-            final long iValue = inputList.get(i);
-            final LongColumn newColumn = new LongColumn();
-            for (int j = 0; j < i; ++j) {
-                final long jValue = inputList.get(j);
-                newColumn.appendEntry(iValue + jValue);
-            }
-            matrix.appendColumn(newColumn);
-        }
-
-        for (int i = windowSize + 1; i < inputList.size(); ++i) {
+        final XmasValidator validator = new XmasValidator(this.windowSize);
+        for (int i = 0; i < inputList.size(); ++i) {
             final long iValue = inputList.get(i);
-            if (!matrix.contains(iValue)) {
+            if (!validator.accept(iValue)) {
                 System.out.println("Value " + iValue + " at position " + i + " is not a sum of any previous pair in window");
             }
-            matrix.removeFirstColumn();
-            matrix.removeFirstRow();
-
-            final List<Long> newRow = new LinkedList<>();
-            for (int j = i - windowSize + 1; j < i; ++j) {
-                final long jValue = inputList.get(j);
-                newRow.add(iValue + jValue);
-            }
-
-            matrix.appendRow(newRow);
-            matrix.appendColumn(this.createInitialColumn(i));
         }
     }
 
-    public void findSublistSum(long target) {
-        final Sublist sublist = new Sublist(this.inputList);
-
-        while(sublist.getSublistSum() != target) {
-            if(sublist.getHigh() % 2 == 1) {
-                if(sublist.getHigh() == sublist.getLow() + 1) {
-                    sublist.append();
-                }
-                sublist.popFront();
-            } else {
-                if (sublist.getLow() == 1 || sublist.getSublistSum() > target) {
-                    sublist.append();
-                } else {
-                    sublist.prepend();
-                }
-            }
-        }
-
-        System.out.println("The sublist from position " + sublist.getLow() + " to position " + sublist.getHigh() + " sums to " + target);
-
-        final long min = inputList.subList(sublist.getLow(), sublist.getHigh() + 1).stream().mapToLong(val -> val).min().getAsLong();
-        final long max = inputList.subList(sublist.getLow(), sublist.getHigh() - 1).stream().mapToLong(val -> val).max().getAsLong();
-
-        System.out.println("The sum of the extremal values is " + (min + max));
+    // Same as printCorruptedIndices, but reads the numbers as they are needed instead of from a list
+    public static void printCorruptedIndices(Reader reader, int windowSize) throws IOException {
+        new XmasStreamValidator(windowSize).validate(reader, (position, value) ->
+                System.out.println("Value " + value + " at position " + position + " is not a sum of any previous pair in window"));
     }
 
-    public LongColumn createInitialColumn(int index) {
-        final List<Long> column = new LinkedList<>();
-        final long addedValue = this.inputList.get(index);
-        for (int i = index - windowSize + 1; i < index; ++i) {
-            column.add(inputList.get(i) + addedValue);
+    public void findSublistSum(long target) {
+        final ContiguousRange range = new ContiguousRangeFinder(this.inputList.stream().mapToLong(val -> val).toArray())
+                .find(target);
+        if(range == null) {
+            System.out.println("No sublist sums to " + target);
+            return;
         }
-        return new LongColumn(column);
+
+        System.out.println("The sublist from position " + range.low + " to position " + range.high + " sums to " + target);
+        System.out.println("The sum of the extremal values is " + (range.min + range.max));
     }
 }